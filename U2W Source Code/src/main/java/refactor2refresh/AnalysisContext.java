@@ -0,0 +1,104 @@
+package refactor2refresh;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State collected during one analysis run (one repository, or one file for the single-file modes).
+ * A context is confined to the thread driving that run, so several repositories can be processed
+ * side by side in the same JVM, each with its own context.
+ *
+ * With -Du2w.stream=true the analytics merged into a run's context are spooled to a temporary file
+ * (see AnalyticsSpool) instead of being kept in analyticsMap; read them through analyticsEntries().
+ */
+public class AnalysisContext {
+    static final String STREAM_PROPERTY = "u2w.stream";
+
+    // key => TestClass#TestMethod
+    final HashMap<String, TestAnalytics> analyticsMap;
+    // streaming runs only, created by the first mergeFrom
+    private AnalyticsSpool analyticsSpool;
+    // # separable components => # tests
+    final Map<Integer, Integer> separableComponentFrequency = new HashMap<>();
+    int totalRedundantTests = 0;
+    int totalNewPuts = 0;
+    // file path => position in the repository walk, recorded for the files of a sharded run
+    final Map<String, Integer> discoveryIndex = new ConcurrentHashMap<>();
+
+    public AnalysisContext() {
+        this(new HashMap<>());
+    }
+
+    private AnalysisContext(HashMap<String, TestAnalytics> analyticsMap) {
+        this.analyticsMap = analyticsMap;
+    }
+
+    /**
+     * A context for the work on a single file that is merged into the run's context later.
+     * mergeFrom adds its analytics in the order they were collected, as if they had been
+     * collected in the run's context directly.
+     */
+    static AnalysisContext insertionOrdered() {
+        return new AnalysisContext(new LinkedHashMap<>());
+    }
+
+    static boolean streaming() {
+        return Boolean.getBoolean(STREAM_PROPERTY);
+    }
+
+    public HashMap<String, TestAnalytics> getAnalyticsMap() {
+        return analyticsMap;
+    }
+
+    /**
+     * The analytics of the run in the iteration order of analyticsMap, read from the spool in streaming runs.
+     */
+    Iterable<Map.Entry<String, TestAnalytics>> analyticsEntries() {
+        if (analyticsSpool == null) {
+            return analyticsMap.entrySet();
+        }
+        return analyticsSpool.entries();
+    }
+
+    public Map<Integer, Integer> getSeparableComponentFrequency() {
+        return separableComponentFrequency;
+    }
+
+    public int getTotalRedundantTests() {
+        return totalRedundantTests;
+    }
+
+    public int getTotalNewPuts() {
+        return totalNewPuts;
+    }
+
+    /**
+     * Adds the counters of another run to this one, e.g. to print totals over several repositories.
+     */
+    public void mergeFrom(AnalysisContext other) {
+        if (other.analyticsSpool != null) {
+            Map<String, TestAnalytics> spooled = new LinkedHashMap<>();
+            other.analyticsEntries().forEach(entry -> spooled.put(entry.getKey(), entry.getValue()));
+            mergeAnalytics(spooled);
+        } else {
+            mergeAnalytics(other.analyticsMap);
+        }
+        other.separableComponentFrequency.forEach((components, frequency) ->
+                separableComponentFrequency.merge(components, frequency, Integer::sum));
+        totalRedundantTests += other.totalRedundantTests;
+        totalNewPuts += other.totalNewPuts;
+    }
+
+    private void mergeAnalytics(Map<String, TestAnalytics> analytics) {
+        if (analyticsSpool == null && streaming()) {
+            analyticsSpool = new AnalyticsSpool();
+        }
+        if (analyticsSpool != null) {
+            analyticsSpool.putAll(analytics);
+        } else {
+            analyticsMap.putAll(analytics);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package refactor2refresh;
+
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The TestAnalytics of a streaming run (see AnalysisContext), kept in a temporary file instead of
+ * the heap. Records are appended as length-prefixed JSON, like PartialResult writes them; only the
+ * key and file offset of each record stay in memory.
+ *
+ * The offsets are kept in a HashMap that receives the same puts as analyticsMap would have, so
+ * entries() iterates in the same order and a test class seen twice replaces its earlier record in
+ * place, exactly as the in-memory map does.
+ */
+final class AnalyticsSpool {
+
+    private final Path file;
+    private final DataOutputStream out;
+    private final HashMap<String, Long> offsets = new HashMap<>();
+    private long length;
+    private RandomAccessFile reader;
+
+    AnalyticsSpool() {
+        try {
+            file = Files.createTempFile("u2w-analytics", ".spool");
+            file.toFile().deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile())));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the analytics spool", e);
+        }
+    }
+
+    /**
+     * Like analyticsMap.putAll(analytics).
+     */
+    synchronized void putAll(Map<String, TestAnalytics> analytics) {
+        Map<String, Long> appended = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<String, TestAnalytics> entry : analytics.entrySet()) {
+                byte[] record = PartialResult.analyticsToJson(entry.getValue()).toString().getBytes(StandardCharsets.UTF_8);
+                appended.put(entry.getKey(), length);
+                out.writeInt(record.length);
+                out.write(record);
+                length += Integer.BYTES + record.length;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write to the analytics spool " + file, e);
+        }
+        // putAll sizes the table the way analyticsMap.putAll would
+        offsets.putAll(appended);
+    }
+
+    synchronized int size() {
+        return offsets.size();
+    }
+
+    /**
+     * The records in the iteration order of the equivalent analyticsMap, read back one at a time.
+     */
+    synchronized Iterable<Map.Entry<String, TestAnalytics>> entries() {
+        try {
+            out.flush();
+            if (reader == null) {
+                reader = new RandomAccessFile(file.toFile(), "r");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the analytics spool " + file, e);
+        }
+        return () -> {
+            Iterator<Map.Entry<String, Long>> keys = offsets.entrySet().iterator();
+            return new Iterator<Map.Entry<String, TestAnalytics>>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, TestAnalytics> next() {
+                    Map.Entry<String, Long> key = keys.next();
+                    return new AbstractMap.SimpleImmutableEntry<>(key.getKey(), read(key.getValue()));
+                }
+            };
+        };
+    }
+
+    private synchronized TestAnalytics read(long offset) {
+        try {
+            reader.seek(offset);
+            byte[] record = new byte[reader.readInt()];
+            reader.readFully(record);
+            return PartialResult.analyticsFromJson(new JSONObject(new String(record, StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the analytics spool " + file, e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package refactor2refresh;
+
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.type.ArrayType;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parsed test files for the whole session, so the phases of a fix run stop re-parsing the same
+ * original, _Purified and _Parameterized files. Files on disk are keyed by profile, path,
+ * modification time and size; sources still in memory (see FixPipeline) by profile, path and content.
+ *
+ * The cached trees are never handed out: callers get a clone they are free to modify. Clones carry no
+ * source positions, which none of the refactoring code reads. Phase I hands its output tree over
+ * through handOff, so Phase II does not parse the _Purified source at all.
+ * The least recently used entries are evicted beyond -Du2w.astCache.entries (default 128, 16 in
+ * streaming runs, 0 turns the cache off).
+ */
+final class CompilationUnitCache {
+
+    static final String ENTRIES_PROPERTY = "u2w.astCache.entries";
+
+    private static CompilationUnitCache shared;
+
+    private final int maxEntries;
+    private final Map<Key, CompilationUnit> entries;
+    final AtomicInteger hits = new AtomicInteger();
+    final AtomicInteger misses = new AtomicInteger();
+
+    CompilationUnitCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, CompilationUnit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CompilationUnit> eldest) {
+                return size() > CompilationUnitCache.this.maxEntries;
+            }
+        };
+    }
+
+    static synchronized CompilationUnitCache shared() {
+        if (shared == null) {
+            shared = new CompilationUnitCache(Math.max(0, Integer.getInteger(ENTRIES_PROPERTY, AnalysisContext.streaming() ? 16 : 128)));
+        }
+        return shared;
+    }
+
+    /**
+     * Like JavaParsers.get(profile).parse(file).
+     */
+    CompilationUnit parse(JavaParsers.Profile profile, Path file) throws FileNotFoundException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Let the parser report the missing file the way it always has
+            return JavaParsers.get(profile).parse(file.toFile());
+        }
+        Key key = new Key(profile, file.toAbsolutePath().normalize().toString(),
+                attributes.lastModifiedTime().toMillis() + ":" + attributes.size());
+        CompilationUnit cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        return store(key, JavaParsers.get(profile).parse(file.toFile()));
+    }
+
+    /**
+     * Like parsing the file at filePath after source has been written to it with Untangle2Weave.writeSourceFile.
+     */
+    CompilationUnit parse(JavaParsers.Profile profile, String filePath, String source) {
+        Key key = new Key(profile, filePath, source);
+        CompilationUnit cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        return store(key, JavaParsers.get(profile).parse(new ByteArrayInputStream(source.getBytes())));
+    }
+
+    /**
+     * Registers a tree built in memory as the result of parsing source, so the next phase does not
+     * parse what the previous one just printed. Skipped when parsing would not give the same tree:
+     * when source does not survive being written with the default charset and read back, or when the
+     * cache is off. Array types are normalized the way printing and parsing normalizes them
+     * (int a[] becomes int[] a).
+     *
+     * @return whether the tree was registered; the caller must not modify it afterwards
+     */
+    boolean handOff(JavaParsers.Profile profile, String filePath, String source, CompilationUnit compilationUnit) {
+        ParserConfiguration configuration = JavaParsers.get(profile).getParserConfiguration();
+        if (maxEntries == 0 || !new String(source.getBytes(), configuration.getCharacterEncoding()).equals(source)) {
+            return false;
+        }
+        compilationUnit.findAll(ArrayType.class).forEach(arrayType -> arrayType.setOrigin(ArrayType.Origin.TYPE));
+        synchronized (entries) {
+            entries.put(new Key(profile, filePath, source), compilationUnit);
+        }
+        return true;
+    }
+
+    private CompilationUnit lookup(Key key) {
+        CompilationUnit cached;
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // The cached tree is never modified, so it can be cloned by several threads at once
+        return cached.clone();
+    }
+
+    private CompilationUnit store(Key key, CompilationUnit parsed) {
+        if (maxEntries == 0) {
+            return parsed;
+        }
+        synchronized (entries) {
+            entries.put(key, parsed);
+        }
+        return parsed.clone();
+    }
+
+    private static final class Key {
+        final JavaParsers.Profile profile;
+        final String path;
+        // modification time and size of a file, or the source itself
+        final String version;
+
+        Key(JavaParsers.Profile profile, String path, String version) {
+            this.profile = profile;
+            this.path = path;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return profile == other.profile && path.equals(other.path) && version.equals(other.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(profile, path, version);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package refactor2refresh;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.BodyDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.*;
+import com.github.javaparser.ast.stmt.DoStmt;
+import com.github.javaparser.ast.stmt.ForEachStmt;
+import com.github.javaparser.ast.stmt.ForStmt;
+import com.github.javaparser.ast.stmt.IfStmt;
+import com.github.javaparser.ast.stmt.TryStmt;
+import com.github.javaparser.ast.stmt.WhileStmt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * Collects, in one walk over a test method (method.walk(visitor)), what hasComplexControlStructures
+ * used to look for with a findAll per construct. filterKey() then applies its checks in the same
+ * order, so a method with several constructs is still counted under the same key.
+ */
+class ComplexStructureVisitor implements Consumer<Node> {
+    private static final List<String> COMPLEX_TYPES = Arrays.asList("List", "Set", "Map");
+
+    private boolean foundControlFlow = false;
+    private boolean foundLambda = false;
+    private boolean foundSleep = false;
+    private boolean foundMocking = false;
+    private boolean foundOverride = false;
+    private boolean foundMethodReference = false;
+    private boolean foundArray = false;
+    // Their types are only looked at when no other construct decides
+    private final List<VariableDeclarationExpr> declarations = new ArrayList<>();
+
+    /**
+     * The filteredTestsMap key of the first construct found, in the order of hasComplexControlStructures
+     * (parameterized tests aside), or null if the method has none.
+     */
+    public String filterKey() {
+        if (foundControlFlow) {
+            return "CTRL";
+        }
+        if (foundLambda) {
+            return "LMDA";
+        }
+        if (foundSleep) {
+            return "SLEEP";
+        }
+        if (foundMocking) {
+            return "MOCK";
+        }
+        if (foundOverride) {
+            return "OVERRIDE";
+        }
+        if (foundMethodReference) {
+            return "CTRL";
+        }
+        // Array declarations, or byte arrays from getBytes()
+        for (VariableDeclarationExpr varDecl : declarations) {
+            if (varDecl.getElementType().isArrayType()) {
+                return "DS";
+            }
+            for (VariableDeclarator var : varDecl.getVariables()) {
+                if (var.getInitializer().isPresent() && var.getInitializer().get() instanceof MethodCallExpr
+                        && ((MethodCallExpr) var.getInitializer().get()).getNameAsString().equals("getBytes")) {
+                    return "DS";
+                }
+            }
+        }
+        if (foundArray) {
+            return "DS";
+        }
+        for (VariableDeclarationExpr varDecl : declarations) {
+            String type = varDecl.getElementType().asString();
+            if (COMPLEX_TYPES.stream().anyMatch(type::contains)) {
+                return "DS";
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void accept(Node node) {
+        if (node instanceof TryStmt || node instanceof IfStmt || node instanceof ForStmt || node instanceof ForEachStmt
+                || node instanceof WhileStmt || node instanceof DoStmt) {
+            foundControlFlow = true;
+        } else if (node instanceof LambdaExpr) {
+            foundLambda = true;
+        } else if (node instanceof MethodCallExpr) {
+            MethodCallExpr methodCall = (MethodCallExpr) node;
+            String name = methodCall.getNameAsString();
+            // Thread.sleep
+            if (name.equals("sleep") && methodCall.getScope().isPresent()
+                    && methodCall.getScope().get().toString().equals("Thread")) {
+                foundSleep = true;
+            }
+            // Mockito-style when(...).thenReturn(...)
+            if ((name.equals("thenReturn") || name.equals("thenThrow") || name.equals("thenAnswer"))
+                    && methodCall.getScope().isPresent() && isWhenMethodInChain(methodCall.getScope().get())) {
+                foundMocking = true;
+            }
+        } else if (node instanceof ObjectCreationExpr) {
+            // Anonymous classes overriding a method
+            Optional<NodeList<BodyDeclaration<?>>> anonymousClassBody = ((ObjectCreationExpr) node).getAnonymousClassBody();
+            if (anonymousClassBody.isPresent()) {
+                for (BodyDeclaration<?> member : anonymousClassBody.get()) {
+                    if (member.isMethodDeclaration() && member.asMethodDeclaration().getAnnotations().stream()
+                            .anyMatch(a -> a.getNameAsString().equals("Override"))) {
+                        foundOverride = true;
+                    }
+                }
+            }
+        } else if (node instanceof MethodReferenceExpr) {
+            foundMethodReference = true;
+        } else if (node instanceof VariableDeclarationExpr) {
+            declarations.add((VariableDeclarationExpr) node);
+        } else if (node instanceof ArrayInitializerExpr || node instanceof ArrayCreationExpr) {
+            foundArray = true;
+        }
+    }
+
+    private static boolean isWhenMethodInChain(Expression expr) {
+        if (!(expr instanceof MethodCallExpr)) {
+            return false;
+        }
+
+        MethodCallExpr methodCall = (MethodCallExpr) expr;
+
+        // If this is the "when" method, we found it
+        if (methodCall.getNameAsString().equals("when")) {
+            return true;
+        }
+
+        // Otherwise, check parent in the chain if it exists
+        if (methodCall.getScope().isPresent()) {
+            return isWhenMethodInChain(methodCall.getScope().get());
+        }
+
+        return false;
+    }
+}
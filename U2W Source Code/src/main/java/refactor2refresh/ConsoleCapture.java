@@ -0,0 +1,138 @@
+package refactor2refresh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+
+/**
+ * Per-thread capture of System.out. Replaces the old System.setOut(...) swapping, which only works
+ * while a single repository is processed at a time: output written by a thread inside capture(...)
+ * goes to that thread's buffer, everything else to the console.
+ *
+ * redirect(...) additionally sends everything that would reach the console, System.err included,
+ * to another stream while a task runs; the daemon uses it to stream a request's output to its client.
+ */
+final class ConsoleCapture {
+
+    private static final ThreadLocal<OutputStream> TARGET = new ThreadLocal<>();
+    private static PrintStream console;
+    private static PrintStream errorConsole;
+    private static volatile OutputStream redirect;
+
+    private ConsoleCapture() {
+    }
+
+    private static synchronized void install() {
+        if (console == null) {
+            console = System.out;
+            errorConsole = System.err;
+            System.setOut(new PrintStream(new RoutingOutputStream(console, true), true));
+            System.setErr(new PrintStream(new RoutingOutputStream(errorConsole, false), true));
+        }
+    }
+
+    /**
+     * Runs the task on the current thread and returns everything it printed to System.out,
+     * together with its value or the exception it failed with.
+     */
+    static <T> Captured<T> capture(Callable<T> task) {
+        install();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        OutputStream previous = TARGET.get();
+        TARGET.set(buffer);
+        T value = null;
+        Exception error = null;
+        try {
+            value = task.call();
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            System.out.flush();
+            restore(previous);
+        }
+        return new Captured<>(value, error, buffer.toString());
+    }
+
+    /**
+     * Runs the task on the current thread while all console output of the JVM goes to target.
+     * Only one task can be redirected at a time, others wait.
+     */
+    static synchronized <T> Captured<T> redirect(OutputStream target, Callable<T> task) {
+        install();
+        redirect = target;
+        T value = null;
+        Exception error = null;
+        try {
+            value = task.call();
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            redirect = null;
+        }
+        return new Captured<>(value, error, "");
+    }
+
+    private static void restore(OutputStream previous) {
+        if (previous == null) {
+            TARGET.remove();
+        } else {
+            TARGET.set(previous);
+        }
+    }
+
+    static class Captured<T> {
+        final T value;
+        final Exception error;
+        final String output;
+
+        Captured(T value, Exception error, String output) {
+            this.value = value;
+            this.error = error;
+            this.output = output;
+        }
+    }
+
+    private static class RoutingOutputStream extends OutputStream {
+        private final PrintStream fallback;
+        private final boolean perThread;
+
+        RoutingOutputStream(PrintStream fallback, boolean perThread) {
+            this.fallback = fallback;
+            this.perThread = perThread;
+        }
+
+        private OutputStream current() {
+            OutputStream target = perThread ? TARGET.get() : null;
+            if (target != null) {
+                return target;
+            }
+            OutputStream redirected = redirect;
+            return redirected != null ? redirected : fallback;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            OutputStream target = current();
+            synchronized (target) {
+                target.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream target = current();
+            synchronized (target) {
+                target.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            current().flush();
+        }
+    }
+}
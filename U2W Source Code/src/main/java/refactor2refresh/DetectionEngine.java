@@ -0,0 +1,297 @@
+package refactor2refresh;
+
+import com.github.javaparser.ast.CompilationUnit;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs DAT detection over many test files on a bounded pool of worker threads.
+ * Results are returned in the order of the input list, so reports built from them
+ * are identical to the ones produced by a serial run.
+ */
+public class DetectionEngine {
+
+    // -Du2w.threads=N, defaults to the number of available cores
+    static final String THREADS_PROPERTY = "u2w.threads";
+
+    public static int configuredThreadCount() {
+        String value = System.getProperty(THREADS_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + THREADS_PROPERTY + ": " + value + ", using 1 thread");
+            return 1;
+        }
+    }
+
+    /**
+     * One pool is shared by all repositories processed in this JVM, so fanning out over
+     * repositories does not multiply the number of CPU-bound workers. It is sized once, from
+     * -Du2w.threads as it is when detection first runs, and lives as long as the JVM: a daemon or
+     * watcher keeps the thread count it was started with.
+     */
+    private static final class SharedPool {
+        static final int THREADS = configuredThreadCount();
+        static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, workerThreadFactory());
+    }
+
+    public static List<TestFileResult> detect(List<Path> testFiles) {
+        return detect(testFiles, null);
+    }
+
+    /**
+     * @param onlyMethods per file, the test methods to analyze; files without an entry (or a null map)
+     *                    are analyzed completely
+     */
+    public static List<TestFileResult> detect(List<Path> testFiles, Map<Path, Set<String>> onlyMethods) {
+        List<TestFileResult> results = new ArrayList<>();
+        if (SharedPool.THREADS <= 1 || testFiles.size() <= 1) {
+            for (Path path : testFiles) {
+                TestFileResult result = detectFile(path, methodsOf(onlyMethods, path));
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+            return results;
+        }
+
+        ExecutorService executor = SharedPool.POOL;
+        List<Future<ConsoleCapture.Captured<TestFileResult>>> futures = new ArrayList<>(testFiles.size());
+        try {
+            for (Path path : testFiles) {
+                futures.add(executor.submit(() -> ConsoleCapture.capture(() -> detectFile(path, methodsOf(onlyMethods, path)))));
+            }
+            // Collect and replay the console output in submission order to keep the output deterministic
+            for (Future<ConsoleCapture.Captured<TestFileResult>> future : futures) {
+                ConsoleCapture.Captured<TestFileResult> captured = future.get();
+                System.out.print(captured.output);
+                if (captured.value != null) {
+                    results.add(captured.value);
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while detecting assertion pastas", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw new RuntimeException("Detection worker failed", e.getCause());
+        }
+        return results;
+    }
+
+    private static Set<String> methodsOf(Map<Path, Set<String>> onlyMethods, Path path) {
+        return onlyMethods == null ? null : onlyMethods.get(path);
+    }
+
+    private static TestFileResult detectFile(Path path, Set<String> onlyMethods) {
+        ConsoleCapture.Captured<ParsedFile> parsed = ConsoleCapture.capture(() -> parseFile(path, onlyMethods));
+        System.out.print(parsed.output);
+        return analyzeFile(parsed.value, parsed.output);
+    }
+
+    /**
+     * A test file after the prefilter, the cache lookup and parsing. Either the detection result is
+     * already known (decided), or the compilation unit is ready for analyzeFile. Between readFile and
+     * parseFile, the content and the stored IR of the file are kept instead of the compilation unit.
+     */
+    static final class ParsedFile {
+        final Path path;
+        final Set<String> onlyMethods;
+        final boolean decided;
+        final TestFileResult result;
+        final CompilationUnit compilationUnit;
+        final ResultCache cache;
+        final String cacheKey;
+        // where to save the TestMethodIR of the file, null if it is not recorded
+        final String irKey;
+        // read but not parsed yet: the file content if it was read, and its stored IR if there is one
+        final ByteBuffer content;
+        final TestMethodIR ir;
+
+        private ParsedFile(Path path, Set<String> onlyMethods, boolean decided, TestFileResult result,
+                           CompilationUnit compilationUnit, ResultCache cache, String cacheKey, String irKey,
+                           ByteBuffer content, TestMethodIR ir) {
+            this.path = path;
+            this.onlyMethods = onlyMethods;
+            this.decided = decided;
+            this.result = result;
+            this.compilationUnit = compilationUnit;
+            this.cache = cache;
+            this.cacheKey = cacheKey;
+            this.irKey = irKey;
+            this.content = content;
+            this.ir = ir;
+        }
+
+        static ParsedFile decided(Path path, TestFileResult result) {
+            return new ParsedFile(path, null, true, result, null, null, null, null, null, null);
+        }
+    }
+
+    static ParsedFile parseFile(Path path, Set<String> onlyMethods) {
+        return parseFile(readFile(path, onlyMethods));
+    }
+
+    /**
+     * The I/O-bound part of detection: the prefilter, the cache lookup and loading the IR. Never throws,
+     * a file that cannot be read is decided with a null result.
+     */
+    static ParsedFile readFile(Path path, Set<String> onlyMethods) {
+        try {
+            ByteBuffer content = null;
+            // The counts are per file, so method-scoped runs always parse
+            if (onlyMethods == null && LexicalPrefilter.isEnabled()) {
+                content = LexicalPrefilter.map(path);
+                LexicalPrefilter.Counts counts = LexicalPrefilter.scan(content);
+                if (counts.canSkip()) {
+                    System.out.println("Skipping file by prefilter (" + counts.testAnnotations + " tests, "
+                            + counts.assertionCalls + " assertion calls): " + path);
+                    return ParsedFile.decided(path, LexicalPrefilter.skippedResult(path, counts));
+                }
+            }
+            ResultCache cache = ResultCache.configured();
+            String key = null;
+            if (cache != null) {
+                if (content == null) {
+                    content = ByteBuffer.wrap(Files.readAllBytes(path));
+                }
+                key = ResultCache.contentKey(content, onlyMethods);
+                ResultCache.Entry entry = cache.lookup(key, path.toString());
+                if (entry != null) {
+                    System.out.print(entry.log);
+                    return ParsedFile.decided(path, entry.result);
+                }
+            }
+            TestMethodIR.Store irStore = TestMethodIR.configured();
+            String irKey = null;
+            TestMethodIR ir = null;
+            if (irStore != null) {
+                if (content == null) {
+                    content = ByteBuffer.wrap(Files.readAllBytes(path));
+                }
+                irKey = TestMethodIR.contentKey(content);
+                ir = irStore.load(irKey);
+            }
+            return new ParsedFile(path, onlyMethods, false, null, null, cache, key, irKey, content, ir);
+        } catch (Exception e) {
+            System.err.println("Error processing file: " + path);
+            e.printStackTrace();
+            return ParsedFile.decided(path, null);
+        }
+    }
+
+    /**
+     * The CPU-bound part of reading a file: replays detection from its IR, or parses it. Never throws,
+     * a file that cannot be parsed is decided with a null result.
+     *
+     * @param read what readFile returned for the file
+     */
+    static ParsedFile parseFile(ParsedFile read) {
+        if (read.decided) {
+            return read;
+        }
+        Path path = read.path;
+        try {
+            String irKey = read.irKey;
+            if (read.ir != null) {
+                ParsedFile replayed = replay(path, read.onlyMethods, read.ir, read.cache, read.cacheKey);
+                if (replayed != null) {
+                    return replayed;
+                }
+            }
+            // The IR of a file is recorded by detection of all its test methods
+            if (read.onlyMethods != null) {
+                irKey = null;
+            }
+            System.out.println("Identifying assertion pastas in file: " + path);
+            // Parse the input Java test file
+            CompilationUnit compilationUnit;
+            if (read.content != null) {
+                byte[] bytes = new byte[read.content.remaining()];
+                read.content.duplicate().get(bytes);
+                compilationUnit = JavaParsers.detecting().parse(new ByteArrayInputStream(bytes));
+            } else {
+                compilationUnit = JavaParsers.detecting().parse(path.toFile());
+            }
+            return new ParsedFile(path, read.onlyMethods, false, null, compilationUnit, read.cache, read.cacheKey, irKey,
+                    null, null);
+        } catch (Exception e) {
+            System.err.println("Error processing file: " + path);
+            e.printStackTrace();
+            return ParsedFile.decided(path, null);
+        }
+    }
+
+    // Detection from the IR of an unchanged file, null if the replay fails and the file has to be parsed
+    private static ParsedFile replay(Path path, Set<String> onlyMethods, TestMethodIR ir, ResultCache cache, String key) {
+        String log = "Identifying assertion pastas in file: " + path + System.lineSeparator();
+        ConsoleCapture.Captured<TestFileResult> replayed = ConsoleCapture.capture(() -> ir.detect(path.toString(), onlyMethods));
+        if (replayed.error != null) {
+            System.err.println("Ignoring IR of " + path + ": " + replayed.error);
+            return null;
+        }
+        System.out.print(log + replayed.output);
+        if (cache != null) {
+            cache.store(key, path.toString(), replayed.value, log + replayed.output);
+        }
+        return ParsedFile.decided(path, replayed.value);
+    }
+
+    /**
+     * The CPU-bound part of detection, also stores the result in the cache and the IR of the file.
+     *
+     * @param parseLog what readFile and parseFile printed for the file, it is part of the cached console output
+     */
+    static TestFileResult analyzeFile(ParsedFile parsed, String parseLog) {
+        if (parsed.decided) {
+            return parsed.result;
+        }
+        String filePath = parsed.path.toString();
+        TestMethodIR.Builder ir = parsed.irKey != null ? new TestMethodIR.Builder() : null;
+        ConsoleCapture.Captured<TestFileResult> captured = ConsoleCapture.capture(() ->
+                Untangle2Weave.identifyAssertionPastas(filePath, parsed.compilationUnit, parsed.onlyMethods, ir));
+        System.out.print(captured.output);
+        if (captured.error != null) {
+            System.err.println("Error processing file: " + parsed.path);
+            captured.error.printStackTrace();
+            return null;
+        }
+        if (TimeBudget.timedOut(captured.value)) {
+            // Another run may well finish in time, do not remember this one
+            return captured.value;
+        }
+        if (parsed.cache != null) {
+            parsed.cache.store(parsed.cacheKey, filePath, captured.value, parseLog + captured.output);
+        }
+        if (ir != null) {
+            TestMethodIR.configured().save(parsed.irKey, ir.ir);
+        }
+        return captured.value;
+    }
+
+    private static ThreadFactory workerThreadFactory() {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "u2w-detect-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
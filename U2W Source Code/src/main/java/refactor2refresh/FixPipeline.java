@@ -0,0 +1,507 @@
+package refactor2refresh;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The fix flow (detection, Phase I and Phase II) as a pipeline of stages connected by bounded queues:
+ *
+ * discover -> read -> parse -> detect -> refactor -> write -> report
+ *
+ * read (prefilter, cache lookup, loading the IR) and write are I/O-bound and run on virtual threads
+ * when the runtime has them, parse (parsing or replaying the IR), detect and refactor are CPU-bound
+ * and share -Du2w.threads permits with every other pipeline in the JVM.
+ * The report stage runs on the calling thread and puts the files back into discovery order, so the
+ * console output, the analytics and the totals are the same as those of a serial run. Discovery
+ * waits while as many files as the queues and workers can hold are not reported yet, so a slow file
+ * does not let the reorder buffer grow without bound behind it.
+ *
+ * -Du2w.pipeline.queue=N      capacity of each queue between two stages (default 64)
+ * -Du2w.pipeline.ioThreads=N  workers of the read and write stages
+ * -Du2w.pipeline.stats=true   print per-stage throughput and queue depths at the end of a run
+ *
+ * With -Du2w.stream=true (see AnalysisContext) the run holds a bounded amount of state whatever the
+ * size of the repository: at most -Du2w.stream.window files are in flight (default twice the number
+ * of workers of the CPU-bound stages), the reorder buffer included, so parsed files do not pile up in
+ * front of detection. The output of the fix steps is spooled to a temporary file until the end of the run,
+ * and the per-file detection results are dropped once their totals are added, unless a sharded
+ * run needs them for its partial result.
+ */
+public class FixPipeline {
+
+    static final String QUEUE_PROPERTY = "u2w.pipeline.queue";
+    static final String IO_THREADS_PROPERTY = "u2w.pipeline.ioThreads";
+    static final String STATS_PROPERTY = "u2w.pipeline.stats";
+    static final String WINDOW_PROPERTY = "u2w.stream.window";
+
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+    private static Semaphore cpuPermits;
+    // highest heap occupancy seen right after a full collection, see trackLiveHeap
+    private static final AtomicLong peakLiveHeap = new AtomicLong(-1);
+
+    // Marks the end of the input in every queue
+    private static final Item END = new Item(-1, null, null);
+
+    private final AnalysisContext context;
+    private final int queueCapacity;
+    private final boolean streaming;
+    // files discovered but not yet reported, which bounds the reorder buffer of report()
+    private Semaphore inFlight;
+    private final List<Stage> stages = new ArrayList<>();
+    private volatile Throwable failure;
+
+    /**
+     * One test file on its way through the stages.
+     */
+    private static class Item {
+        final long sequence;
+        final Path path;
+        final Set<String> onlyMethods;
+        DetectionEngine.ParsedFile parsed;
+        TestFileResult result;
+        // per-file analytics, merged into the run context by the report stage
+        AnalysisContext fileContext;
+        Untangle2Weave.ResultRefactorTestFile refactored;
+        final List<String[]> pendingWrites = new ArrayList<>();
+        final StringBuilder detectionLog = new StringBuilder();
+        final StringBuilder fixLog = new StringBuilder();
+
+        Item(long sequence, Path path, Set<String> onlyMethods) {
+            this.sequence = sequence;
+            this.path = path;
+            this.onlyMethods = onlyMethods;
+        }
+    }
+
+    private interface StageWork {
+        void process(Item item) throws Exception;
+    }
+
+    private class Stage {
+        final String name;
+        final BlockingQueue<Item> input;
+        final BlockingQueue<Item> output;
+        final int workers;
+        final boolean virtual;
+        final boolean cpuBound;
+        final StageWork work;
+        final AtomicInteger remainingWorkers;
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        Stage(String name, BlockingQueue<Item> input, BlockingQueue<Item> output, int workers, boolean virtual, boolean cpuBound, StageWork work) {
+            this.name = name;
+            this.input = input;
+            this.output = output;
+            this.workers = workers;
+            this.virtual = virtual;
+            this.cpuBound = cpuBound;
+            this.work = work;
+            this.remainingWorkers = new AtomicInteger(workers);
+        }
+
+        void start() {
+            ThreadFactory factory = virtual ? VIRTUAL_THREADS : platformThreadFactory("u2w-" + name);
+            for (int i = 0; i < workers; i++) {
+                factory.newThread(this::runWorker).start();
+            }
+        }
+
+        private void runWorker() {
+            try {
+                while (true) {
+                    Item item = input.take();
+                    if (item == END) {
+                        // Let the other workers of this stage see the end too, the last one passes it on
+                        input.put(END);
+                        if (remainingWorkers.decrementAndGet() == 0) {
+                            output.put(END);
+                        }
+                        return;
+                    }
+                    if (failure == null) {
+                        processItem(item);
+                        processed.incrementAndGet();
+                    }
+                    put(output, item);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void processItem(Item item) throws InterruptedException {
+            if (cpuBound) {
+                cpuPermits().acquire();
+            }
+            long start = System.nanoTime();
+            try {
+                work.process(item);
+            } catch (Exception | Error e) {
+                // Stops the run, the report stage rethrows it once the queues are drained
+                fail(e);
+            } finally {
+                busyNanos.addAndGet(System.nanoTime() - start);
+                if (cpuBound) {
+                    cpuPermits().release();
+                }
+            }
+        }
+    }
+
+    FixPipeline(AnalysisContext context) {
+        this.context = context;
+        this.queueCapacity = intProperty(QUEUE_PROPERTY, 64);
+        this.streaming = AnalysisContext.streaming();
+    }
+
+    /**
+     * Detects assertion pastas in the given test files and refactors them, like
+     * createRefreshedTestFilesInSandbox(context, DetectionEngine.detect(testFiles, onlyMethods)).
+     *
+     * @param onlyMethods per file, the test methods to analyze, or null for whole files
+     */
+    Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox run(Iterator<Path> testFiles, Map<Path, Set<String>> onlyMethods) throws IOException {
+        int cpuThreads = DetectionEngine.configuredThreadCount();
+        int ioThreads = intProperty(IO_THREADS_PROPERTY, VIRTUAL_THREADS != null ? 4 * cpuThreads : Math.max(2, cpuThreads));
+        boolean virtual = VIRTUAL_THREADS != null;
+        if (streaming) {
+            inFlight = new Semaphore(intProperty(WINDOW_PROPERTY, 2 * cpuThreads));
+            trackLiveHeap();
+        } else {
+            // What the queues and the workers of the stages can hold
+            inFlight = new Semaphore(6 * queueCapacity + 2 * ioThreads + 3 * cpuThreads);
+        }
+
+        BlockingQueue<Item> toRead = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> toParse = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> toDetect = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> toRefactor = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> toWrite = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> toReport = new ArrayBlockingQueue<>(queueCapacity);
+
+        stages.add(new Stage("read", toRead, toParse, ioThreads, virtual, false, this::read));
+        stages.add(new Stage("parse", toParse, toDetect, cpuThreads, false, true, this::parse));
+        stages.add(new Stage("detect", toDetect, toRefactor, cpuThreads, false, true, this::detect));
+        stages.add(new Stage("refactor", toRefactor, toWrite, cpuThreads, false, true, this::refactor));
+        stages.add(new Stage("write", toWrite, toReport, ioThreads, virtual, false, this::write));
+
+        long start = System.nanoTime();
+        stages.forEach(Stage::start);
+        Thread discovery = platformThreadFactory("u2w-pipeline-discover").newThread(() -> discover(testFiles, onlyMethods, toRead));
+        discovery.start();
+
+        Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox result = report(toReport);
+        if (Boolean.parseBoolean(System.getProperty(STATS_PROPERTY, "false"))) {
+            printStats(System.nanoTime() - start);
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException("Fix pipeline failed", failure);
+        }
+        return result;
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    private void discover(Iterator<Path> testFiles, Map<Path, Set<String>> onlyMethods, BlockingQueue<Item> toRead) {
+        long sequence = 0;
+        try {
+            while (failure == null && testFiles.hasNext()) {
+                Path path = testFiles.next();
+                inFlight.acquire();
+                put(toRead, new Item(sequence++, path, onlyMethods == null ? null : onlyMethods.get(path)));
+            }
+        } catch (RuntimeException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                toRead.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void read(Item item) {
+        ConsoleCapture.Captured<DetectionEngine.ParsedFile> captured =
+                ConsoleCapture.capture(() -> DetectionEngine.readFile(item.path, item.onlyMethods));
+        item.parsed = captured.value;
+        item.detectionLog.append(captured.output);
+    }
+
+    private void parse(Item item) {
+        ConsoleCapture.Captured<DetectionEngine.ParsedFile> captured =
+                ConsoleCapture.capture(() -> DetectionEngine.parseFile(item.parsed));
+        item.parsed = captured.value;
+        item.detectionLog.append(captured.output);
+    }
+
+    private void detect(Item item) {
+        String parseLog = item.detectionLog.toString();
+        ConsoleCapture.Captured<TestFileResult> captured =
+                ConsoleCapture.capture(() -> DetectionEngine.analyzeFile(item.parsed, parseLog));
+        // The compilation unit is not needed anymore, do not keep it alive in the queues
+        item.parsed = null;
+        item.result = captured.value;
+        item.detectionLog.append(captured.output);
+    }
+
+    private void refactor(Item item) throws Exception {
+        if (item.result == null) {
+            return;
+        }
+        item.fileContext = AnalysisContext.insertionOrdered();
+        ConsoleCapture.Captured<Untangle2Weave.ResultRefactorTestFile> captured = ConsoleCapture.capture(() ->
+                Untangle2Weave.refactorTestFile(item.fileContext, item.result,
+                        (filePath, source) -> item.pendingWrites.add(new String[]{filePath, source})));
+        item.fixLog.append(captured.output);
+        if (captured.error != null) {
+            throw captured.error;
+        }
+        item.refactored = captured.value;
+    }
+
+    private void write(Item item) throws IOException {
+        for (String[] pendingWrite : item.pendingWrites) {
+            Untangle2Weave.writeSourceFile(pendingWrite[0], pendingWrite[1]);
+        }
+        item.pendingWrites.clear();
+    }
+
+    /**
+     * Puts the files back into discovery order. Detection output is printed as it becomes available,
+     * the output of the fix steps after all of it, which is the order of a serial run.
+     */
+    private Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox report(BlockingQueue<Item> toReport) throws IOException {
+        Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox result = new Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox();
+        Map<Long, Item> reorderBuffer = new HashMap<>();
+        StringBuilder fixLog = new StringBuilder();
+        Path fixLogSpool = null;
+        Writer fixLogWriter = null;
+        if (streaming) {
+            result.keepFileResults = Shard.configured() != null;
+            fixLogSpool = Files.createTempFile("u2w-fix", ".log");
+            fixLogSpool.toFile().deleteOnExit();
+            fixLogWriter = Files.newBufferedWriter(fixLogSpool, StandardCharsets.UTF_8);
+        }
+        long next = 0;
+        try {
+            while (true) {
+                Item item = toReport.take();
+                if (item == END) {
+                    break;
+                }
+                reorderBuffer.put(item.sequence, item);
+                for (Item ready = reorderBuffer.remove(next); ready != null; ready = reorderBuffer.remove(++next)) {
+                    System.out.print(ready.detectionLog);
+                    if (fixLogWriter != null) {
+                        fixLogWriter.append(ready.fixLog);
+                    } else {
+                        fixLog.append(ready.fixLog);
+                    }
+                    if (ready.fileContext != null) {
+                        context.mergeFrom(ready.fileContext);
+                    }
+                    if (ready.refactored != null) {
+                        result.add(ready.result, ready.refactored);
+                    }
+                    inFlight.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fixing assertion pastas", e);
+        } finally {
+            if (fixLogWriter != null) {
+                fixLogWriter.close();
+            }
+        }
+        if (fixLogSpool != null) {
+            printSpooledLog(fixLogSpool);
+        } else {
+            System.out.print(fixLog);
+        }
+        return result.finish();
+    }
+
+    private static void printSpooledLog(Path spool) throws IOException {
+        try (Reader reader = Files.newBufferedReader(spool, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                System.out.print(new String(buffer, 0, read));
+            }
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+    }
+
+    /**
+     * Prints the highest heap usage of the JVM so far, the sum of the peaks of the heap memory pools,
+     * and the highest usage right after a full collection, which is what the run actually needed.
+     */
+    static void printPeakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        long max = Runtime.getRuntime().maxMemory();
+        long live = peakLiveHeap.get();
+        System.out.println(String.format("Peak heap usage: %d MB of %d MB max, %s", peak >> 20, max >> 20,
+                live <= 0 ? "no full collection" : (live >> 20) + " MB live after full collections"));
+    }
+
+    /**
+     * Records the heap occupancy after every full collection from now on, once per JVM. Young
+     * collections are left out, they leave the garbage of the old generation in place.
+     */
+    private static synchronized void trackLiveHeap() {
+        if (peakLiveHeap.get() >= 0) {
+            return;
+        }
+        peakLiveHeap.set(0);
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        NotificationListener listener = (notification, handback) -> {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                return;
+            }
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            if (!"end of major GC".equals(info.getGcAction())) {
+                return;
+            }
+            long live = 0;
+            for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                if (heapPools.contains(pool.getKey())) {
+                    live += pool.getValue().getUsed();
+                }
+            }
+            peakLiveHeap.accumulateAndGet(live, Math::max);
+        };
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    private void printStats(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format("Pipeline finished in %.1f s", seconds));
+        for (Stage stage : stages) {
+            double busySeconds = stage.busyNanos.get() / 1e9;
+            System.out.println(String.format("  %-8s %3d %s workers, %6d files, %7.1f files/s, busy %5.1f%%, max queue depth %d/%d",
+                    stage.name, stage.workers, stage.virtual ? "virtual" : "platform", stage.processed.get(),
+                    seconds > 0 ? stage.processed.get() / seconds : 0.0,
+                    seconds > 0 ? 100 * busySeconds / (seconds * stage.workers) : 0.0,
+                    stage.maxQueueDepth.get(), queueCapacity));
+        }
+        CompilationUnitCache astCache = CompilationUnitCache.shared();
+        System.out.println(String.format("  AST cache: %d hits, %d misses", astCache.hits.get(), astCache.misses.get()));
+    }
+
+    private void put(BlockingQueue<Item> queue, Item item) throws InterruptedException {
+        queue.put(item);
+        int depth = queue.size();
+        for (Stage stage : stages) {
+            if (stage.input == queue) {
+                stage.maxQueueDepth.accumulateAndGet(depth, Math::max);
+            }
+        }
+    }
+
+    /**
+     * One set of permits for the CPU-bound stages of all pipelines, so processing several repositories
+     * side by side does not multiply the number of busy cores. Like the detection pool, it is sized
+     * once from -Du2w.threads for the life of the JVM.
+     */
+    private static synchronized Semaphore cpuPermits() {
+        if (cpuPermits == null) {
+            cpuPermits = new Semaphore(DetectionEngine.configuredThreadCount());
+        }
+        return cpuPermits;
+    }
+
+    /**
+     * Thread.ofVirtual().name(..).factory() when the runtime has virtual threads (Java 21+), otherwise
+     * null. Looked up reflectively since the tool is built for Java 11.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "u2w-io-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static int intProperty(String property, int defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + property + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
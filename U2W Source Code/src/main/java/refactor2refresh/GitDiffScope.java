@@ -0,0 +1,164 @@
+package refactor2refresh;
+
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.MethodDeclaration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The Java files changed in a local git repository relative to a base ref, used to limit
+ * detection and refactoring to the files (and optionally the test methods) touched by a change.
+ *
+ * The diff is taken from the merge base of the base ref and HEAD to the working tree, which is
+ * what a pull request check sees. Untracked files that are not ignored count as changed as a whole.
+ */
+public class GitDiffScope {
+
+    // @@ -12,3 +14,5 @@ ...
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -\\d+(?:,\\d+)? \\+(\\d+)(?:,(\\d+))? @@");
+
+    private final Map<Path, List<int[]>> changedLines;
+
+    private GitDiffScope(Map<Path, List<int[]>> changedLines) {
+        this.changedLines = changedLines;
+    }
+
+    /**
+     * Reads the .java files below repositoryPath that differ from baseRef, and the untracked ones.
+     * Deleted files are left out.
+     */
+    public static GitDiffScope compute(String repositoryPath, String baseRef) throws IOException {
+        Path repository = Paths.get(repositoryPath);
+        String base = mergeBase(repository, baseRef);
+        // --relative limits the diff to the given directory and prints paths relative to it. The
+        // file names are read from -z output, where git neither quotes nor escapes them, and matched
+        // to the sections of the diff by their order.
+        List<String> names = nulSeparated(git(repository, "diff", "--name-only", "-z", "--no-ext-diff", "--relative",
+                "--diff-filter=d", base, "--", "*.java"));
+        String diff = git(repository, "diff", "-U0", "--no-color", "--no-ext-diff", "--relative",
+                "--diff-filter=d", base, "--", "*.java");
+
+        Map<Path, List<int[]>> changedLines = new LinkedHashMap<>();
+        List<int[]> current = null;
+        int file = 0;
+        for (String line : diff.split("\n")) {
+            if (line.startsWith("diff --git ")) {
+                if (file == names.size()) {
+                    throw new IOException("git diff of " + repositoryPath + " has more files than its --name-only output");
+                }
+                current = new ArrayList<>();
+                // Resolved the same way Files.walk(repository) names files, so reports relativize them alike
+                changedLines.put(repository.resolve(names.get(file++)), current);
+            } else if (current != null && line.startsWith("@@")) {
+                Matcher matcher = HUNK_HEADER.matcher(line);
+                if (matcher.find()) {
+                    int start = Integer.parseInt(matcher.group(1));
+                    int count = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+                    // A pure deletion (count 0) touches the line it was removed after
+                    current.add(new int[]{start, start + Math.max(count, 1) - 1});
+                }
+            }
+        }
+        for (String name : nulSeparated(git(repository, "ls-files", "--others", "--exclude-standard", "-z", "--", "*.java"))) {
+            List<int[]> wholeFile = new ArrayList<>();
+            wholeFile.add(new int[]{1, Integer.MAX_VALUE});
+            changedLines.put(repository.resolve(name), wholeFile);
+        }
+        return new GitDiffScope(changedLines);
+    }
+
+    private static List<String> nulSeparated(String output) {
+        List<String> values = new ArrayList<>();
+        for (String value : output.split("\0")) {
+            if (!value.isEmpty()) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    public List<Path> changedFiles() {
+        return new ArrayList<>(changedLines.keySet());
+    }
+
+    /**
+     * @param file one of the paths returned by changedFiles()
+     * @return the names of the test methods of the file whose declaration overlaps a changed line,
+     * or null if the file cannot be parsed (the whole file is analyzed then)
+     */
+    public Set<String> changedTestMethods(Path file) throws IOException {
+        List<int[]> ranges = changedLines.get(file);
+        if (ranges == null) {
+            return new HashSet<>();
+        }
+        ParseResult<CompilationUnit> parsed = JavaParsers.detecting().getParser().parse(file);
+        if (!parsed.isSuccessful() || !parsed.getResult().isPresent()) {
+            return null;
+        }
+        Set<String> methods = new HashSet<>();
+        for (MethodDeclaration method : parsed.getResult().get().findAll(MethodDeclaration.class)) {
+            if (!method.getAnnotationByName("Test").isPresent() || !method.getRange().isPresent()) {
+                continue;
+            }
+            int begin = method.getRange().get().begin.line;
+            int end = method.getRange().get().end.line;
+            for (int[] range : ranges) {
+                if (range[0] <= end && range[1] >= begin) {
+                    methods.add(method.getNameAsString());
+                    break;
+                }
+            }
+        }
+        return methods;
+    }
+
+    private static String mergeBase(Path repository, String baseRef) throws IOException {
+        try {
+            return git(repository, "merge-base", baseRef, "HEAD").trim();
+        } catch (IOException e) {
+            // e.g. unrelated histories, diff against the ref itself
+            return baseRef;
+        }
+    }
+
+    private static String git(Path workingDirectory, String... arguments) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(arguments));
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(workingDirectory.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = builder.start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            in.transferTo(buffer);
+            output = buffer.toString(StandardCharsets.UTF_8);
+        }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException(String.join(" ", command) + " failed with exit code " + exitCode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running " + String.join(" ", command), e);
+        }
+        return output;
+    }
+}
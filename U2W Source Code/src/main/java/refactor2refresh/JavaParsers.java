@@ -0,0 +1,57 @@
+package refactor2refresh;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.JavaParserAdapter;
+import com.github.javaparser.ParserConfiguration;
+
+/**
+ * The parsers used by U2W, one per thread and profile, each with its own ParserConfiguration.
+ * Replaces StaticJavaParser, whose configuration is shared by everything that parses on a thread:
+ * once a thread had been configured for refactoring, every later parse on it, detection included,
+ * silently used that configuration, and a new symbol solver was built for each configured parse.
+ *
+ * DETECT is JavaParser's default configuration and is used by detection and the other read-only
+ * analyses. REFACTOR is used by the refactoring phases: comments are not attributed to nodes, so they
+ * are not copied into the generated tests.
+ *
+ * Neither profile installs a symbol resolver. Detection works on syntax alone, and the few
+ * operations that need types ask the repository's ProjectTypeSolver.
+ *
+ * The adapters throw ParseProblemException like StaticJavaParser; getParser() gives the underlying
+ * JavaParser for callers that want the ParseResult.
+ */
+final class JavaParsers {
+
+    enum Profile {
+        DETECT,
+        REFACTOR
+    }
+
+    private static final ThreadLocal<JavaParserAdapter> DETECTING =
+            ThreadLocal.withInitial(() -> JavaParserAdapter.of(new JavaParser(configuration(Profile.DETECT))));
+    private static final ThreadLocal<JavaParserAdapter> REFACTORING =
+            ThreadLocal.withInitial(() -> JavaParserAdapter.of(new JavaParser(configuration(Profile.REFACTOR))));
+
+    private JavaParsers() {
+    }
+
+    static JavaParserAdapter detecting() {
+        return DETECTING.get();
+    }
+
+    static JavaParserAdapter refactoring() {
+        return REFACTORING.get();
+    }
+
+    static JavaParserAdapter get(Profile profile) {
+        return profile == Profile.DETECT ? detecting() : refactoring();
+    }
+
+    static ParserConfiguration configuration(Profile profile) {
+        ParserConfiguration configuration = new ParserConfiguration();
+        if (profile == Profile.REFACTOR) {
+            configuration.setAttributeComments(false);
+        }
+        return configuration;
+    }
+}
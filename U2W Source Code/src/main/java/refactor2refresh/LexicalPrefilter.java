@@ -0,0 +1,210 @@
+package refactor2refresh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Byte-level scan of a test file, run before it is parsed. A Disjoint Assertion Tangle needs a @Test
+ * method with at least two assertions, so files without @Test annotations (simple or qualified names)
+ * or with fewer than two assertion call sites are skipped without building an AST.
+ *
+ * Comments, string and char literals are skipped; everything else is over-counted rather than
+ * under-counted (e.g. assert calls outside test methods), so a file that could contain a DAT is
+ * never skipped. Files that mention mocking, or a class annotation that makes identifyAssertionPastas
+ * leave the file out of the results, always go through the parser.
+ *
+ * Turned off with -Du2w.prefilter=false.
+ */
+public class LexicalPrefilter {
+
+    static final String PREFILTER_PROPERTY = "u2w.prefilter";
+
+    // filteredTestsMap key for test methods of skipped files
+    static final String FILTER_KEY = "PREFILTER";
+
+    private static final byte[] TEST = "Test".getBytes();
+    private static final byte[] ASSERT = "assert".getBytes();
+    // Lower case, compared case-insensitively. Mirrors hasMockingAnnotations
+    private static final byte[][] PARSE_REQUIRED = {
+            "mock".getBytes(), "spy".getBytes(), "autocloseable".getBytes(), "runwith".getBytes()
+    };
+
+    static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty(PREFILTER_PROPERTY, "true"));
+    }
+
+    static class Counts {
+        int testAnnotations;
+        int assertionCalls;
+        boolean parseRequired;
+
+        boolean canSkip() {
+            return !parseRequired && (testAnnotations == 0 || assertionCalls < 2);
+        }
+    }
+
+    static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    static Counts scan(ByteBuffer content) {
+        Counts counts = new Counts();
+        int length = content.limit();
+        int i = 0;
+        while (i < length) {
+            byte b = content.get(i);
+            if (b == '/' && i + 1 < length && content.get(i + 1) == '/') {
+                i = skipPast(content, i + 2, (byte) '\n');
+            } else if (b == '/' && i + 1 < length && content.get(i + 1) == '*') {
+                i = skipBlockComment(content, i + 2);
+            } else if (b == '"' || b == '\'') {
+                i = skipLiteral(content, i, b);
+            } else if (b == '@') {
+                int start = skipWhitespace(content, i + 1);
+                if (isTestAnnotation(content, start)) {
+                    counts.testAnnotations++;
+                }
+                i = start;
+            } else if (isIdentifierStart(b) && (i == 0 || !isIdentifierPart(content, i - 1))) {
+                int end = i;
+                while (isIdentifierPart(content, end)) {
+                    end++;
+                }
+                if (matches(content, i, ASSERT)) {
+                    int next = skipWhitespace(content, end);
+                    if (next < length && content.get(next) == '(') {
+                        counts.assertionCalls++;
+                    }
+                }
+                if (!counts.parseRequired) {
+                    counts.parseRequired = containsParseRequiredWord(content, i, end);
+                }
+                i = end;
+            } else {
+                i++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * The result reported for a skipped file: its test methods are counted as filtered, like the
+     * methods excluded by hasComplexControlStructures.
+     */
+    static TestFileResult skippedResult(Path path, Counts counts) {
+        TestFileResult result = new TestFileResult(path.toString(), counts.testAnnotations, 0, 0, 0.0);
+        if (counts.testAnnotations > 0) {
+            result.filteredTestsMap.put(FILTER_KEY, counts.testAnnotations);
+        }
+        return result;
+    }
+
+    private static boolean containsParseRequiredWord(ByteBuffer content, int start, int end) {
+        for (byte[] word : PARSE_REQUIRED) {
+            for (int i = start; i + word.length <= end; i++) {
+                if (matchesIgnoreCase(content, i, word)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // @Test, or a qualified name ending in Test such as @org.junit.jupiter.api.Test
+    private static boolean isTestAnnotation(ByteBuffer content, int start) {
+        int segment = start;
+        while (segment < content.limit() && isIdentifierStart(content.get(segment))) {
+            int end = segment;
+            while (isIdentifierPart(content, end)) {
+                end++;
+            }
+            int next = skipWhitespace(content, end);
+            if (next >= content.limit() || content.get(next) != '.') {
+                return end - segment == TEST.length && matches(content, segment, TEST);
+            }
+            segment = skipWhitespace(content, next + 1);
+        }
+        return false;
+    }
+
+    private static int skipPast(ByteBuffer content, int i, byte end) {
+        while (i < content.limit() && content.get(i) != end) {
+            i++;
+        }
+        return i + 1;
+    }
+
+    private static int skipBlockComment(ByteBuffer content, int i) {
+        while (i + 1 < content.limit() && !(content.get(i) == '*' && content.get(i + 1) == '/')) {
+            i++;
+        }
+        return i + 2;
+    }
+
+    // Handles "...", '...' and text blocks ("""...""")
+    private static int skipLiteral(ByteBuffer content, int i, byte quote) {
+        int length = content.limit();
+        if (quote == '"' && i + 2 < length && content.get(i + 1) == '"' && content.get(i + 2) == '"') {
+            i += 3;
+            while (i + 2 < length && !(content.get(i) == '"' && content.get(i + 1) == '"' && content.get(i + 2) == '"')) {
+                i += content.get(i) == '\\' ? 2 : 1;
+            }
+            return i + 3;
+        }
+        i++;
+        while (i < length && content.get(i) != quote && content.get(i) != '\n') {
+            i += content.get(i) == '\\' ? 2 : 1;
+        }
+        return i + 1;
+    }
+
+    private static int skipWhitespace(ByteBuffer content, int i) {
+        while (i < content.limit() && Character.isWhitespace(content.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean matches(ByteBuffer content, int i, byte[] word) {
+        if (i + word.length > content.limit()) {
+            return false;
+        }
+        for (int k = 0; k < word.length; k++) {
+            if (content.get(i + k) != word[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesIgnoreCase(ByteBuffer content, int i, byte[] lowerCaseWord) {
+        for (int k = 0; k < lowerCaseWord.length; k++) {
+            byte b = content.get(i + k);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseWord[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierStart(byte b) {
+        // Bytes of non-ASCII characters are treated as identifier characters
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || b == '_' || b == '$' || b < 0;
+    }
+
+    private static boolean isIdentifierPart(ByteBuffer content, int i) {
+        if (i >= content.limit()) {
+            return false;
+        }
+        byte b = content.get(i);
+        return isIdentifierStart(b) || (b >= '0' && b <= '9');
+    }
+}
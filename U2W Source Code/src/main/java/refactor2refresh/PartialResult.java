@@ -0,0 +1,238 @@
+package refactor2refresh;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * What one shard (see Shard) found in one repository, written as JSON so the shards of a batch can
+ * run on different machines and be merged into the reports of a single run afterwards.
+ *
+ * Both detection and fix runs keep the per-file results with their position in the repository walk
+ * and the separable component frequencies; fix runs also keep the aggregated counts and the
+ * TestAnalytics records.
+ * Files go to -Du2w.partial.dir (default ./u2w-partials).
+ */
+public class PartialResult {
+
+    static final String PARTIAL_DIR_PROPERTY = "u2w.partial.dir";
+
+    String operation;
+    int repositoryIndex;
+    String repositoryPath;
+    int shardIndex;
+    int shardCount;
+    final List<FileEntry> files = new ArrayList<>();
+    // fix runs only
+    Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox fixResult;
+    final Map<String, TestAnalytics> analytics = new LinkedHashMap<>();
+    final Map<Integer, Integer> separableComponentFrequency = new HashMap<>();
+
+    static class FileEntry {
+        final int discoveryIndex;
+        final TestFileResult result;
+        final PartialResult partial;
+
+        FileEntry(int discoveryIndex, TestFileResult result, PartialResult partial) {
+            this.discoveryIndex = discoveryIndex;
+            this.result = result;
+            this.partial = partial;
+        }
+    }
+
+    private PartialResult(String operation, int repositoryIndex, String repositoryPath, Shard shard) {
+        this.operation = operation;
+        this.repositoryIndex = repositoryIndex;
+        this.repositoryPath = repositoryPath;
+        this.shardIndex = shard == null ? 0 : shard.index;
+        this.shardCount = shard == null ? 0 : shard.count;
+    }
+
+    static PartialResult ofDetection(String operation, int repositoryIndex, String repositoryPath, Shard shard,
+                                     AnalysisContext context, List<TestFileResult> results) {
+        PartialResult partial = new PartialResult(operation, repositoryIndex, repositoryPath, shard);
+        partial.addFiles(context, results);
+        return partial;
+    }
+
+    private void addFiles(AnalysisContext context, List<TestFileResult> results) {
+        for (TestFileResult result : results) {
+            files.add(new FileEntry(context.discoveryIndex.getOrDefault(result.filePath, Integer.MAX_VALUE), result, this));
+            Untangle2Weave.countSeparableComponents(separableComponentFrequency, result);
+        }
+    }
+
+    static PartialResult ofFix(String operation, int repositoryIndex, String repositoryPath, Shard shard,
+                               AnalysisContext context, Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox result) {
+        PartialResult partial = new PartialResult(operation, repositoryIndex, repositoryPath, shard);
+        partial.fixResult = result;
+        context.analyticsEntries().forEach(entry -> partial.analytics.put(entry.getKey(), entry.getValue()));
+        partial.addFiles(context, result.fileResults);
+        return partial;
+    }
+
+    boolean isFix() {
+        return fixResult != null;
+    }
+
+    /**
+     * Writes the partial result to -Du2w.partial.dir, named after the repository and the shard.
+     */
+    Path write() throws IOException {
+        String dir = System.getProperty(PARTIAL_DIR_PROPERTY, "u2w-partials");
+        Path directory = Paths.get(dir.trim().isEmpty() ? "u2w-partials" : dir.trim());
+        Files.createDirectories(directory);
+        String repositoryName = Paths.get(repositoryPath).toAbsolutePath().normalize().getFileName().toString()
+                .replaceAll("[^a-zA-Z0-9.-]", "_");
+        Path file = directory.resolve(String.format("%03d-%s.shard-%d-of-%d.json", repositoryIndex, repositoryName, shardIndex, shardCount));
+        Files.write(file, toJson().toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Partial result written: " + file);
+        return file;
+    }
+
+    private JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("toolVersion", ResultCache.TOOL_VERSION);
+        json.put("operation", operation);
+        json.put("repositoryIndex", repositoryIndex);
+        json.put("repositoryPath", repositoryPath);
+        json.put("shardIndex", shardIndex);
+        json.put("shardCount", shardCount);
+        JSONArray frequency = new JSONArray();
+        separableComponentFrequency.forEach((components, tests) -> frequency.put(new JSONArray().put(components).put(tests)));
+        json.put("separableComponentFrequency", frequency);
+        if (isFix()) {
+            JSONObject fix = ResultCache.putResult(new JSONObject(), fixResult.aggregatedResult);
+            fix.put("totalNewSeparatedTestsCreated", fixResult.totalNewSeparatedTestsCreated);
+            fix.put("totalNewPUTsCreated", fixResult.totalNewPUTsCreated);
+            fix.put("totalPotentialPuts", fixResult.totalPotentialPuts);
+            fix.put("totalTestsAfterP2", fixResult.totalTestsAfterP2);
+            json.put("fix", fix);
+            JSONArray analyticsJson = new JSONArray();
+            analytics.forEach((key, testAnalytics) -> analyticsJson.put(analyticsToJson(testAnalytics).put("key", key)));
+            json.put("analytics", analyticsJson);
+        }
+        JSONArray filesJson = new JSONArray();
+        Path repository = Paths.get(repositoryPath);
+        for (FileEntry entry : files) {
+            JSONObject fileJson = ResultCache.putResult(new JSONObject(), entry.result);
+            // Relative, so shards that checked the repository out in different places can be merged
+            fileJson.put("path", repository.relativize(Paths.get(entry.result.filePath)).toString());
+            fileJson.put("discoveryIndex", entry.discoveryIndex);
+            filesJson.put(fileJson);
+        }
+        json.put("files", filesJson);
+        return json;
+    }
+
+    static PartialResult read(Path file) throws IOException {
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        if (!ResultCache.TOOL_VERSION.equals(json.optString("toolVersion"))) {
+            throw new IllegalStateException("Partial result " + file + " was written by a different tool version");
+        }
+        PartialResult partial = new PartialResult(json.getString("operation"), json.getInt("repositoryIndex"),
+                json.getString("repositoryPath"), null);
+        partial.shardIndex = json.getInt("shardIndex");
+        partial.shardCount = json.getInt("shardCount");
+        JSONArray frequency = json.getJSONArray("separableComponentFrequency");
+        for (int i = 0; i < frequency.length(); i++) {
+            partial.separableComponentFrequency.put(frequency.getJSONArray(i).getInt(0), frequency.getJSONArray(i).getInt(1));
+        }
+        if (json.has("fix")) {
+            JSONObject fix = json.getJSONObject("fix");
+            partial.fixResult = new Untangle2Weave.ResultCreateRefreshedTestFilesInSandbox(
+                    fix.getInt("totalNewSeparatedTestsCreated"),
+                    fix.getInt("totalNewPUTsCreated"),
+                    fix.getInt("totalPotentialPuts"),
+                    fix.getInt("totalTestsAfterP2"),
+                    ResultCache.fromJson("", fix));
+            JSONArray analyticsJson = json.getJSONArray("analytics");
+            for (int i = 0; i < analyticsJson.length(); i++) {
+                JSONObject testAnalytics = analyticsJson.getJSONObject(i);
+                partial.analytics.put(testAnalytics.getString("key"), analyticsFromJson(testAnalytics));
+            }
+        }
+        JSONArray filesJson = json.getJSONArray("files");
+        Path repository = Paths.get(partial.repositoryPath);
+        for (int i = 0; i < filesJson.length(); i++) {
+            JSONObject fileJson = filesJson.getJSONObject(i);
+            String filePath = repository.resolve(fileJson.getString("path")).toString();
+            partial.files.add(new FileEntry(fileJson.getInt("discoveryIndex"), ResultCache.fromJson(filePath, fileJson), partial));
+        }
+        return partial;
+    }
+
+    /**
+     * @param input a directory of partial results, or comma-separated partial result files
+     */
+    static List<PartialResult> readAll(String input) throws IOException {
+        List<Path> files;
+        Path inputPath = Paths.get(input.trim());
+        if (Files.isDirectory(inputPath)) {
+            try (Stream<Path> entries = Files.list(inputPath)) {
+                files = entries.filter(path -> path.toString().endsWith(".json")).sorted().collect(Collectors.toList());
+            }
+        } else {
+            files = Arrays.stream(input.split(",")).map(String::trim).map(Paths::get).collect(Collectors.toList());
+        }
+        List<PartialResult> partials = new ArrayList<>();
+        for (Path file : files) {
+            partials.add(read(file));
+        }
+        return partials;
+    }
+
+    static JSONObject analyticsToJson(TestAnalytics analytics) {
+        JSONObject json = new JSONObject();
+        json.put("stopProcessing", analytics.stopProcessing);
+        json.put("testClassName", analytics.testClassName);
+        json.put("testMethodName", analytics.testMethodName);
+        json.put("disjointAssertionsCount", analytics.disjointAssertionsCount);
+        json.put("lineCountBefore", analytics.lineCountBefore);
+        json.put("assertionCount", analytics.assertionCount);
+        json.put("lineCountAfterP1", analytics.lineCountAfterP1);
+        json.put("isRetrofittingOpportunity", analytics.isRetrofittingOpportunity);
+        json.put("retrofittingSuccessful", analytics.retrofittingSuccessful);
+        json.put("becameRetrofittedTest", analytics.becameRetrofittedTest);
+        json.put("lineCountAfterP2", analytics.lineCountAfterP2);
+        json.put("assertionCountAfterP2", analytics.assertionCountAfterP2);
+        if (analytics.testsRefactoredTogether != null) {
+            json.put("testsRefactoredTogether", new JSONArray(analytics.testsRefactoredTogether));
+        }
+        return json;
+    }
+
+    static TestAnalytics analyticsFromJson(JSONObject json) {
+        TestAnalytics analytics = new TestAnalytics(json.getString("testClassName"), json.getString("testMethodName"),
+                json.getInt("disjointAssertionsCount"), json.getInt("lineCountBefore"));
+        analytics.stopProcessing = json.getBoolean("stopProcessing");
+        analytics.assertionCount = json.getInt("assertionCount");
+        analytics.lineCountAfterP1 = json.getInt("lineCountAfterP1");
+        analytics.isRetrofittingOpportunity = json.getBoolean("isRetrofittingOpportunity");
+        analytics.retrofittingSuccessful = json.getBoolean("retrofittingSuccessful");
+        analytics.becameRetrofittedTest = json.getBoolean("becameRetrofittedTest");
+        analytics.lineCountAfterP2 = json.getInt("lineCountAfterP2");
+        analytics.assertionCountAfterP2 = json.getInt("assertionCountAfterP2");
+        if (json.has("testsRefactoredTogether")) {
+            JSONArray tests = json.getJSONArray("testsRefactoredTogether");
+            analytics.testsRefactoredTogether = new ArrayList<>();
+            for (int i = 0; i < tests.length(); i++) {
+                analytics.testsRefactoredTogether.add(tests.getString(i));
+            }
+        }
+        return analytics;
+    }
+}
@@ -9,7 +9,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -77,11 +76,9 @@ public class PomUpdater {
     private static List<File> findPurifiedTestFiles(File dir) throws IOException {
         List<File> result = new ArrayList<>();
 
-        // Use Java NIO to walk the directory tree
-        List<Path> paths = Files.walk(Paths.get(dir.getAbsolutePath()))
-                .filter(Files::isRegularFile)
-                .filter(p -> p.toString().endsWith(".java"))
-                .collect(Collectors.toList());
+        // Walk the directory tree, skipping build output and VCS directories
+        List<Path> paths = TestFileDiscovery.configured(Paths.get(dir.getAbsolutePath()))
+                .list(p -> p.toString().endsWith(".java"));
 
         // Check if files match the naming pattern
         for (Path path : paths) {
@@ -0,0 +1,444 @@
+package refactor2refresh;
+
+import com.github.javaparser.JavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.ImportDeclaration;
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.AssignExpr;
+import com.github.javaparser.ast.expr.CastExpr;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.nodeTypes.NodeWithArguments;
+import com.github.javaparser.ast.type.ArrayType;
+import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.type.VarType;
+import com.github.javaparser.resolution.Resolvable;
+import com.github.javaparser.resolution.TypeSolver;
+import com.github.javaparser.resolution.declarations.ResolvedMethodLikeDeclaration;
+import com.github.javaparser.resolution.declarations.ResolvedReferenceTypeDeclaration;
+import com.github.javaparser.resolution.model.SymbolReference;
+import com.github.javaparser.resolution.types.ResolvedType;
+import com.github.javaparser.symbolsolver.JavaSymbolSolver;
+import com.github.javaparser.symbolsolver.cache.Cache;
+import com.github.javaparser.symbolsolver.cache.GuavaCache;
+import com.github.javaparser.symbolsolver.cache.NoCache;
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFacade;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JarTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import com.google.common.cache.CacheBuilder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves types against a whole repository: the JRE, the repository's source roots and the
+ * dependency jars its pom.xml files declare, looked up in the local Maven repository
+ * (-Du2w.m2.repository, default ~/.m2/repository). Built once per repository, on the first test file
+ * of that repository that needs a type, and shared by all its files, so the source roots and jars are
+ * indexed once and every type that has been solved stays solved (up to -Du2w.typeSolver.cacheEntries
+ * types, default 10000). Each source root keeps up to 1000 parsed files.
+ *
+ * Streaming runs (see AnalysisContext) keep one repository's solver at a time, share 32 parsed files
+ * between all its source roots, default to 1000 solved types and drop JavaParser's per-node caches
+ * after every request, so the memory held does not grow with the number of modules.
+ *
+ * JavaParser's solvers are not thread-safe, so resolution against one repository runs one request at
+ * a time: expectedType is synchronized, and the Phase II workers of a repository take turns whenever a
+ * parameter type has to be resolved. Gradle dependencies are not resolved.
+ */
+final class ProjectTypeSolver {
+
+    static final String M2_REPOSITORY_PROPERTY = "u2w.m2.repository";
+    static final String CACHE_ENTRIES_PROPERTY = "u2w.typeSolver.cacheEntries";
+
+    private static final List<String> BUILD_FILES = Arrays.asList("pom.xml", "build.gradle", "build.gradle.kts", "settings.gradle");
+    private static final Pattern PROPERTY_REFERENCE = Pattern.compile("\\$\\{([^}]+)}");
+    // Solvers of the repositories worked on most recently
+    private static final int MAX_PROJECTS = AnalysisContext.streaming() ? 1 : 8;
+    private static final Map<Path, ProjectTypeSolver> PROJECTS = new LinkedHashMap<Path, ProjectTypeSolver>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, ProjectTypeSolver> eldest) {
+            return size() > MAX_PROJECTS;
+        }
+    };
+
+    private final Path root;
+    private JavaSymbolSolver symbolSolver;
+
+    private ProjectTypeSolver(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * The solver of the repository file belongs to.
+     */
+    static ProjectTypeSolver forFile(Path file) {
+        Path root = repositoryRoot(file.toAbsolutePath().normalize());
+        synchronized (PROJECTS) {
+            return PROJECTS.computeIfAbsent(root, ProjectTypeSolver::new);
+        }
+    }
+
+    /**
+     * The type a value written in place of expression must have: the declared type of the variable it
+     * initializes or is assigned to, the type it is cast to, or the type of the parameter it is passed
+     * to. Empty when that type cannot be resolved or cannot be written down (type variables, wildcards).
+     */
+    synchronized Optional<Type> expectedType(Expression expression) {
+        Optional<Node> parent = expression.getParentNode();
+        if (!parent.isPresent()) {
+            return Optional.empty();
+        }
+        Node context = parent.get();
+        if (context instanceof VariableDeclarator && ((VariableDeclarator) context).getInitializer().orElse(null) == expression) {
+            Type declared = ((VariableDeclarator) context).getType();
+            return declared instanceof VarType ? Optional.empty() : Optional.of(declared.clone());
+        }
+        if (context instanceof CastExpr) {
+            return Optional.of(((CastExpr) context).getType().clone());
+        }
+
+        Optional<CompilationUnit> compilationUnit = expression.findCompilationUnit();
+        if (!compilationUnit.isPresent()) {
+            return Optional.empty();
+        }
+        CompilationUnit cu = compilationUnit.get();
+        cu.setData(Node.SYMBOL_RESOLVER_KEY, symbolSolver());
+        try {
+            ResolvedType resolved = null;
+            if (context instanceof AssignExpr && ((AssignExpr) context).getValue() == expression
+                    && ((AssignExpr) context).getOperator() == AssignExpr.Operator.ASSIGN) {
+                resolved = ((AssignExpr) context).getTarget().calculateResolvedType();
+            } else if (context instanceof NodeWithArguments && context instanceof Resolvable) {
+                int argument = ((NodeWithArguments<?>) context).getArguments().indexOf(expression);
+                if (argument >= 0) {
+                    resolved = parameterType((ResolvedMethodLikeDeclaration) ((Resolvable<?>) context).resolve(), argument);
+                }
+            }
+            return resolved == null ? Optional.empty() : toType(resolved, cu);
+        } catch (RuntimeException | StackOverflowError e) {
+            // Unsolved symbols, ambiguous calls and JavaParser's unsupported corners all mean "unknown"
+            return Optional.empty();
+        } finally {
+            cu.removeData(Node.SYMBOL_RESOLVER_KEY);
+            if (AnalysisContext.streaming()) {
+                // The facades remember every node they resolved, the test file's tree included.
+                // get() is synchronized on the class, so no other thread sees the map being cleared
+                synchronized (JavaParserFacade.class) {
+                    JavaParserFacade.clearInstances();
+                }
+            }
+        }
+    }
+
+    private static ResolvedType parameterType(ResolvedMethodLikeDeclaration callee, int argument) {
+        int parameters = callee.getNumberOfParams();
+        if (argument < parameters - 1 || (argument < parameters && !callee.hasVariadicParameter())) {
+            return callee.getParam(argument).getType();
+        }
+        if (callee.hasVariadicParameter()) {
+            return callee.getLastParam().getType().asArrayType().getComponentType();
+        }
+        return null;
+    }
+
+    private static Optional<Type> toType(ResolvedType resolved, CompilationUnit cu) {
+        if (resolved.isPrimitive()) {
+            return Optional.of(JavaParsers.refactoring().parseType(resolved.describe()));
+        }
+        if (resolved.isArray()) {
+            return toType(resolved.asArrayType().getComponentType(), cu).map(ArrayType::new);
+        }
+        if (resolved.isReferenceType()) {
+            return Optional.of(JavaParsers.refactoring().parseType(shortestName(resolved.asReferenceType().getQualifiedName(), cu)));
+        }
+        return Optional.empty();
+    }
+
+    // The simple name when it is visible in cu without an import, the qualified name otherwise
+    private static String shortestName(String qualifiedName, CompilationUnit cu) {
+        int lastDot = qualifiedName.lastIndexOf('.');
+        if (lastDot < 0) {
+            return qualifiedName;
+        }
+        String simpleName = qualifiedName.substring(lastDot + 1);
+        String packageName = qualifiedName.substring(0, lastDot);
+        if (packageName.equals("java.lang") || packageName.equals(cu.getPackageDeclaration().map(p -> p.getNameAsString()).orElse(""))) {
+            return simpleName;
+        }
+        for (ImportDeclaration importDeclaration : cu.getImports()) {
+            if (importDeclaration.isStatic()) {
+                continue;
+            }
+            String imported = importDeclaration.getNameAsString();
+            if (importDeclaration.isAsterisk() ? imported.equals(packageName) : imported.equals(qualifiedName)) {
+                return simpleName;
+            }
+        }
+        return qualifiedName;
+    }
+
+    private JavaSymbolSolver symbolSolver() {
+        if (symbolSolver == null) {
+            List<TypeSolver> solvers = new ArrayList<>();
+            solvers.add(new ReflectionTypeSolver(true));
+            List<Path> sourceRoots = sourceRoots(root);
+            boolean streaming = AnalysisContext.streaming();
+            if (streaming) {
+                JavaParser parser = new JavaParser(JavaParsers.configuration(JavaParsers.Profile.REFACTOR));
+                Cache<Path, Optional<CompilationUnit>> parsedFiles = new GuavaCache<>(CacheBuilder.newBuilder().maximumSize(32).build());
+                Cache<Path, List<CompilationUnit>> parsedDirectories = new GuavaCache<>(CacheBuilder.newBuilder().maximumSize(4).build());
+                for (Path sourceRoot : sourceRoots) {
+                    // The types found are cached by the combined solver below
+                    solvers.add(new JavaParserTypeSolver(sourceRoot, parser, parsedFiles, parsedDirectories, NoCache.create()));
+                }
+            } else {
+                for (Path sourceRoot : sourceRoots) {
+                    solvers.add(new JavaParserTypeSolver(sourceRoot, JavaParsers.configuration(JavaParsers.Profile.REFACTOR), 1000));
+                }
+            }
+            List<Path> jars = dependencyJars(root, localRepository());
+            for (Path jar : jars) {
+                try {
+                    solvers.add(new JarTypeSolver(jar));
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Skipping unreadable dependency " + jar + ": " + e.getMessage());
+                }
+            }
+            long cacheEntries = Math.max(0, Long.getLong(CACHE_ENTRIES_PROPERTY, streaming ? 1000L : 10000L));
+            GuavaCache<String, SymbolReference<ResolvedReferenceTypeDeclaration>> typeCache =
+                    new GuavaCache<>(CacheBuilder.newBuilder().maximumSize(cacheEntries).build());
+            // A solver that fails on a type must not stop the others from solving it
+            symbolSolver = new JavaSymbolSolver(new CombinedTypeSolver(e -> true, solvers, typeCache));
+            System.out.println("Type solver for " + root + ": " + sourceRoots.size() + " source roots, "
+                    + (solvers.size() - 1 - sourceRoots.size()) + " dependency jars");
+        }
+        return symbolSolver;
+    }
+
+    /**
+     * The nearest directory holding .git; otherwise the topmost of the directories holding a build file
+     * that directly contain each other; otherwise the directory holding the src directory file is in.
+     */
+    static Path repositoryRoot(Path file) {
+        Path start = Files.isDirectory(file) ? file : file.getParent();
+        for (Path dir = start; dir != null; dir = dir.getParent()) {
+            if (Files.exists(dir.resolve(".git"))) {
+                return dir;
+            }
+        }
+        Path buildRoot = null;
+        for (Path dir = start; dir != null; dir = dir.getParent()) {
+            if (hasBuildFile(dir)) {
+                buildRoot = dir;
+            } else if (buildRoot != null) {
+                return buildRoot;
+            }
+        }
+        if (buildRoot != null) {
+            return buildRoot;
+        }
+        for (Path dir = start; dir != null; dir = dir.getParent()) {
+            if (dir.getFileName() != null && dir.getFileName().toString().equals("src") && dir.getParent() != null) {
+                return dir.getParent();
+            }
+        }
+        return start;
+    }
+
+    private static boolean hasBuildFile(Path dir) {
+        for (String buildFile : BUILD_FILES) {
+            if (Files.isRegularFile(dir.resolve(buildFile))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Every src/main/java and src/test/java directory of the repository
+    private static List<Path> sourceRoots(Path root) {
+        List<Path> sourceRoots = new ArrayList<>();
+        walk(root, dir -> {
+            if (dir.getFileName().toString().equals("java") && dir.getParent() != null && dir.getParent().getParent() != null
+                    && dir.getParent().getParent().getFileName().toString().equals("src")) {
+                String kind = dir.getParent().getFileName().toString();
+                if (kind.equals("main") || kind.equals("test")) {
+                    sourceRoots.add(dir);
+                    return false;
+                }
+            }
+            return true;
+        });
+        return sourceRoots;
+    }
+
+    private static Path localRepository() {
+        String configured = System.getProperty(M2_REPOSITORY_PROPERTY);
+        return configured != null ? Paths.get(configured) : Paths.get(System.getProperty("user.home"), ".m2", "repository");
+    }
+
+    /**
+     * The jars in the local repository of the dependencies declared by the pom.xml files of the
+     * repository. Versions come from the dependency itself or the dependencyManagement of any of the
+     * poms, with properties defined by any of them substituted. Dependencies that are not in the local
+     * repository are left out.
+     */
+    static List<Path> dependencyJars(Path root, Path localRepository) {
+        List<Document> poms = new ArrayList<>();
+        walk(root, dir -> {
+            Path pom = dir.resolve("pom.xml");
+            if (Files.isRegularFile(pom)) {
+                try {
+                    poms.add(DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(pom.toFile()));
+                } catch (Exception e) {
+                    System.out.println("Skipping unreadable " + pom + ": " + e.getMessage());
+                }
+            }
+            return true;
+        });
+
+        Map<String, String> properties = new HashMap<>();
+        Map<String, String> managedVersions = new HashMap<>();
+        List<Element> dependencies = new ArrayList<>();
+        for (Document pom : poms) {
+            Element project = pom.getDocumentElement();
+            String version = childText(project, "version");
+            if (version == null) {
+                version = childText(child(project, "parent"), "version");
+            }
+            if (version != null) {
+                properties.putIfAbsent("project.version", version);
+            }
+            Element propertiesElement = child(project, "properties");
+            if (propertiesElement != null) {
+                for (Element property : children(propertiesElement, null)) {
+                    properties.putIfAbsent(property.getTagName(), property.getTextContent().trim());
+                }
+            }
+            for (Element dependency : children(child(child(project, "dependencyManagement"), "dependencies"), "dependency")) {
+                String managed = childText(dependency, "version");
+                if (managed != null) {
+                    managedVersions.putIfAbsent(childText(dependency, "groupId") + ":" + childText(dependency, "artifactId"), managed);
+                }
+            }
+            dependencies.addAll(children(child(project, "dependencies"), "dependency"));
+        }
+
+        Map<String, Path> jars = new LinkedHashMap<>();
+        for (Element dependency : dependencies) {
+            String groupId = substitute(childText(dependency, "groupId"), properties);
+            String artifactId = substitute(childText(dependency, "artifactId"), properties);
+            if (groupId == null || artifactId == null || jars.containsKey(groupId + ":" + artifactId)) {
+                continue;
+            }
+            String version = childText(dependency, "version");
+            if (version == null) {
+                version = managedVersions.get(childText(dependency, "groupId") + ":" + childText(dependency, "artifactId"));
+            }
+            version = substitute(version, properties);
+            String type = childText(dependency, "type");
+            String classifier = childText(dependency, "classifier");
+            if ("test-jar".equals(type)) {
+                classifier = "tests";
+            } else if (type != null && !type.equals("jar")) {
+                continue;
+            }
+            if (version == null || version.contains("${")) {
+                continue;
+            }
+            Path jar = localRepository.resolve(groupId.replace('.', '/')).resolve(artifactId).resolve(version)
+                    .resolve(artifactId + "-" + version + (classifier == null ? "" : "-" + substitute(classifier, properties)) + ".jar");
+            if (Files.isRegularFile(jar)) {
+                jars.put(groupId + ":" + artifactId, jar);
+            }
+        }
+        return new ArrayList<>(jars.values());
+    }
+
+    // Properties may refer to other properties
+    private static String substitute(String value, Map<String, String> properties) {
+        for (int round = 0; value != null && value.contains("${") && round < 10; round++) {
+            Matcher matcher = PROPERTY_REFERENCE.matcher(value);
+            StringBuffer substituted = new StringBuffer();
+            while (matcher.find()) {
+                String replacement = properties.get(matcher.group(1));
+                matcher.appendReplacement(substituted, Matcher.quoteReplacement(replacement != null ? replacement : matcher.group()));
+            }
+            matcher.appendTail(substituted);
+            if (substituted.toString().equals(value)) {
+                break;
+            }
+            value = substituted.toString();
+        }
+        return value;
+    }
+
+    private static Element child(Element parent, String tagName) {
+        List<Element> matching = children(parent, tagName);
+        return matching.isEmpty() ? null : matching.get(0);
+    }
+
+    private static String childText(Element parent, String tagName) {
+        Element child = child(parent, tagName);
+        return child == null ? null : child.getTextContent().trim();
+    }
+
+    // Direct children only, all of them when tagName is null
+    private static List<Element> children(Element parent, String tagName) {
+        List<Element> children = new ArrayList<>();
+        if (parent == null) {
+            return children;
+        }
+        for (org.w3c.dom.Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && (tagName == null || ((Element) node).getTagName().equals(tagName))) {
+                children.add((Element) node);
+            }
+        }
+        return children;
+    }
+
+    private interface DirectoryVisitor {
+        // whether to descend into dir
+        boolean visit(Path dir);
+    }
+
+    private static void walk(Path root, DirectoryVisitor visitor) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(root) && TestFileDiscovery.PRUNED_DIRECTORIES.contains(dir.getFileName().toString())) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return visitor.visit(dir) ? FileVisitResult.CONTINUE : FileVisitResult.SKIP_SUBTREE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Error walking " + root + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package refactor2refresh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Processes several repositories side by side, each with its own AnalysisContext.
+ * The console output of every repository is captured and handed back together with its
+ * result in the order of the input list, so the log and the reports read the same as
+ * for a serial run.
+ */
+public class RepositoryRunner {
+
+    @FunctionalInterface
+    public interface RepositoryTask<T> {
+        T run(AnalysisContext context, String repositoryPath) throws Exception;
+    }
+
+    public static class RepositoryRun<T> {
+        final String repositoryPath;
+        final AnalysisContext context;
+        final T result;
+        final Exception error;
+        final String output;
+
+        RepositoryRun(String repositoryPath, AnalysisContext context, ConsoleCapture.Captured<T> captured) {
+            this.repositoryPath = repositoryPath;
+            this.context = context;
+            this.result = captured.value;
+            this.error = captured.error;
+            this.output = captured.output;
+        }
+    }
+
+    /**
+     * Runs the task for every repository and passes the finished runs to the consumer, in input order,
+     * on the calling thread. Detection inside each repository still goes through the shared
+     * DetectionEngine pool, so -Du2w.threads bounds the CPU-bound work as before.
+     */
+    public static <T> void forEachRepository(List<String> repositoryPaths, RepositoryTask<T> task,
+                                             Consumer<RepositoryRun<T>> onComplete) {
+        int threads = Math.min(DetectionEngine.configuredThreadCount(), repositoryPaths.size());
+        if (threads <= 1) {
+            for (String path : repositoryPaths) {
+                onComplete.accept(runRepository(path, task));
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, repositoryThreadFactory());
+        List<Future<RepositoryRun<T>>> futures = new ArrayList<>(repositoryPaths.size());
+        try {
+            for (String path : repositoryPaths) {
+                futures.add(executor.submit(() -> runRepository(path, task)));
+            }
+            for (Future<RepositoryRun<T>> future : futures) {
+                onComplete.accept(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing repositories", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            throw new RuntimeException("Repository worker failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> RepositoryRun<T> runRepository(String path, RepositoryTask<T> task) {
+        AnalysisContext context = new AnalysisContext();
+        ConsoleCapture.Captured<T> captured = ConsoleCapture.capture(() -> task.run(context, path));
+        return new RepositoryRun<>(path, context, captured);
+    }
+
+    private static ThreadFactory repositoryThreadFactory() {
+        AtomicInteger counter = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "u2w-repo-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,262 @@
+package refactor2refresh;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * On-disk cache of per-file detection results, keyed by the SHA-256 of the test file content and
+ * TOOL_VERSION. Unchanged files are served from the cache instead of being parsed and sliced again.
+ *
+ * Entries are small JSON files. The cache is off unless a run asks for it: -Du2w.cache=true keeps them
+ * under ~/.u2w/cache, -Du2w.cache.dir=/path under that directory. -Du2w.cache=false turns it off even
+ * when a directory is given.
+ */
+public class ResultCache {
+
+    // Bump whenever a change alters what identifyAssertionPastas reports for the same input, or which
+    // fields of its result are stored (e.g. slicesOfPastaTests)
+    static final String TOOL_VERSION = "5";
+
+    static final String CACHE_PROPERTY = "u2w.cache";
+    static final String CACHE_DIR_PROPERTY = "u2w.cache.dir";
+
+    // Stands in for the file path in the stored console output, so entries can be shared between checkouts
+    private static final String PATH_PLACEHOLDER = "\u0000path\u0000";
+
+    private static ResultCache instance;
+
+    final Path directory;
+
+    ResultCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the cache configured by system properties, or null if caching is turned off
+     */
+    static synchronized ResultCache configured() {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        boolean hasDir = dir != null && !dir.trim().isEmpty();
+        String enabled = System.getProperty(CACHE_PROPERTY);
+        if (enabled != null ? !Boolean.parseBoolean(enabled) : !hasDir) {
+            return null;
+        }
+        if (instance == null) {
+            Path directory = hasDir
+                    ? Paths.get(dir.trim())
+                    : Paths.get(System.getProperty("user.home"), ".u2w", "cache");
+            instance = new ResultCache(directory);
+        }
+        return instance;
+    }
+
+    static String contentKey(ByteBuffer content) {
+        return contentKey(content, null);
+    }
+
+    /**
+     * @param onlyMethods the test methods detection was limited to, or null for the whole file
+     */
+    static String contentKey(ByteBuffer content, Set<String> onlyMethods) {
+        return sha256(TOOL_VERSION, onlyMethods, content);
+    }
+
+    // Hex SHA-256 of version, the sorted method names and content
+    static String sha256(String version, Set<String> onlyMethods, ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(version.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            if (onlyMethods != null) {
+                digest.update(String.join(",", new TreeSet<>(onlyMethods)).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            digest.update(content.duplicate());
+            byte[] hash = digest.digest();
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private Path entryPath(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".json");
+    }
+
+    /**
+     * Looks up the result for the given file content. Returns null on a miss or an unreadable entry.
+     */
+    Entry lookup(String key, String filePath) {
+        Path entryPath = entryPath(key);
+        if (!Files.isRegularFile(entryPath)) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(entryPath), StandardCharsets.UTF_8));
+            if (!TOOL_VERSION.equals(json.optString("toolVersion"))) {
+                return null;
+            }
+            String log = json.getString("log").replace(PATH_PLACEHOLDER, filePath);
+            if (json.getBoolean("skipped")) {
+                // identifyAssertionPastas returns null for files it does not analyze (e.g. mocking)
+                return new Entry(null, log);
+            }
+            return new Entry(fromJson(filePath, json), log);
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable cache entry " + entryPath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    void store(String key, String filePath, TestFileResult result, String log) {
+        JSONObject json = new JSONObject();
+        json.put("toolVersion", TOOL_VERSION);
+        json.put("log", log.replace(filePath, PATH_PLACEHOLDER));
+        json.put("skipped", result == null);
+        if (result != null) {
+            putResult(json, result);
+        }
+
+        Path entryPath = entryPath(key);
+        try {
+            Files.createDirectories(entryPath.getParent());
+            // Write to a temporary file first so concurrent runs never see a partial entry
+            Path tmp = Files.createTempFile(entryPath.getParent(), key, ".tmp");
+            Files.write(tmp, json.toString().getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(tmp, entryPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entryPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write cache entry " + entryPath + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the fields of a detection result, except its file path, to the given JSON object.
+     * Also used for the partial results of sharded runs.
+     */
+    static JSONObject putResult(JSONObject json, TestFileResult result) {
+        json.put("totalTests", result.totalTests);
+        json.put("totalConsideredTests", result.totalConsideredTests);
+        json.put("pastaCount", result.pastaCount);
+        json.put("pastaPercentage", result.pastaPercentage);
+        json.put("totalLocInObservedTests", result.totalLocInObservedTests);
+        json.put("prescreenedTests", result.prescreenedTests);
+        json.put("independentLogicsInTest", writeCounts(result.independentLogicsInTest));
+        json.put("listPastaTests", new JSONArray(result.listPastaTests));
+        json.put("filteredTestsMap", writeCounts(result.filteredTestsMap));
+        json.put("slicesOfPastaTests", writeSlices(result.slicesOfPastaTests));
+        return json;
+    }
+
+    static TestFileResult fromJson(String filePath, JSONObject json) {
+        TestFileResult result = new TestFileResult(filePath,
+                json.getInt("totalTests"),
+                json.getInt("totalConsideredTests"),
+                json.getInt("pastaCount"),
+                json.getDouble("pastaPercentage"));
+        result.totalLocInObservedTests = json.getInt("totalLocInObservedTests");
+        result.prescreenedTests = json.getInt("prescreenedTests");
+        result.independentLogicsInTest = readCounts(json.getJSONArray("independentLogicsInTest"));
+        result.listPastaTests = new ArrayList<>();
+        JSONArray pastaTests = json.getJSONArray("listPastaTests");
+        for (int i = 0; i < pastaTests.length(); i++) {
+            result.listPastaTests.add(pastaTests.getString(i));
+        }
+        result.filteredTestsMap = readCounts(json.getJSONArray("filteredTestsMap"));
+        // Missing in entries written before the slices were kept, Phase I slices such tests itself
+        if (json.has("slicesOfPastaTests")) {
+            result.slicesOfPastaTests = readSlices(json.getJSONArray("slicesOfPastaTests"));
+        }
+        return result;
+    }
+
+    // [name, statementCount, keptStatements, groups] per test
+    static JSONArray writeSlices(Map<String, TestFileResult.Slices> slicesOfTests) {
+        JSONArray array = new JSONArray();
+        slicesOfTests.forEach((name, slices) -> array.put(new JSONArray()
+                .put(name)
+                .put(slices.statementCount)
+                .put(new JSONArray(slices.keptStatements))
+                .put(new JSONArray(slices.groups))));
+        return array;
+    }
+
+    static Map<String, TestFileResult.Slices> readSlices(JSONArray array) {
+        Map<String, TestFileResult.Slices> slicesOfTests = new HashMap<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONArray entry = array.getJSONArray(i);
+            JSONArray kept = entry.getJSONArray(2);
+            int[][] keptStatements = new int[kept.length()][];
+            for (int a = 0; a < kept.length(); a++) {
+                JSONArray indices = kept.getJSONArray(a);
+                keptStatements[a] = new int[indices.length()];
+                for (int k = 0; k < indices.length(); k++) {
+                    keptStatements[a][k] = indices.getInt(k);
+                }
+            }
+            JSONArray groupsArray = entry.getJSONArray(3);
+            List<List<Integer>> groups = new ArrayList<>(groupsArray.length());
+            for (int g = 0; g < groupsArray.length(); g++) {
+                JSONArray group = groupsArray.getJSONArray(g);
+                List<Integer> members = new ArrayList<>(group.length());
+                for (int k = 0; k < group.length(); k++) {
+                    members.add(group.getInt(k));
+                }
+                groups.add(members);
+            }
+            slicesOfTests.put(entry.getString(0), new TestFileResult.Slices(entry.getInt(1), keptStatements, groups));
+        }
+        return slicesOfTests;
+    }
+
+    // Maps are stored as [key, value] pairs in iteration order, so reports list them in the same order
+    static JSONArray writeCounts(Map<String, Integer> counts) {
+        JSONArray array = new JSONArray();
+        counts.forEach((name, count) -> array.put(new JSONArray().put(name).put(count)));
+        return array;
+    }
+
+    static Map<String, Integer> readCounts(JSONArray array) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONArray pair = array.getJSONArray(i);
+            counts.put(pair.getString(0), pair.getInt(1));
+        }
+        return counts;
+    }
+
+    static class Entry {
+        final TestFileResult result;
+        final String log;
+
+        Entry(TestFileResult result, String log) {
+            this.result = result;
+            this.log = log;
+        }
+    }
+}
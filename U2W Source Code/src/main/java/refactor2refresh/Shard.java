@@ -0,0 +1,84 @@
+package refactor2refresh;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * One of n deterministic slices of the test files of a repository, so a large batch can be spread
+ * over several machines. Configured with -Du2w.shard=i/n (1 <= i <= n).
+ *
+ * A file belongs to the shard picked by a CRC32 of its path relative to the repository root, so
+ * every machine assigns it to the same shard no matter where the repository is checked out.
+ * Sharded runs write a PartialResult instead of their reports; the merge operation combines the
+ * partial results of all shards into the reports of a single run.
+ */
+public class Shard {
+
+    static final String SHARD_PROPERTY = "u2w.shard";
+
+    final int index;
+    final int count;
+
+    Shard(int index, int count) {
+        if (count < 1 || index < 1 || index > count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count + ", expected i/n with 1 <= i <= n");
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * @return the shard configured by system properties, or null if the run is not sharded
+     */
+    static Shard configured() {
+        String value = System.getProperty(SHARD_PROPERTY);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = value.trim().split("/");
+        try {
+            if (parts.length == 2) {
+                return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + SHARD_PROPERTY + ": " + value + ", expected i/n");
+    }
+
+    boolean owns(Path repositoryRoot, Path file) {
+        String relativePath = repositoryRoot.relativize(file).toString().replace(File.separatorChar, '/');
+        CRC32 crc = new CRC32();
+        crc.update(relativePath.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue() % count == index - 1;
+    }
+
+    /**
+     * A discovery filter that keeps the files of this shard. The position of each kept file among all
+     * files accepted by fileFilter is recorded in discoveryIndex, so merging can restore the walk order.
+     */
+    Predicate<Path> filter(Path repositoryRoot, Predicate<Path> fileFilter, Map<String, Integer> discoveryIndex) {
+        AtomicInteger position = new AtomicInteger();
+        return file -> {
+            if (!fileFilter.test(file)) {
+                return false;
+            }
+            int ordinal = position.getAndIncrement();
+            if (!owns(repositoryRoot, file)) {
+                return false;
+            }
+            discoveryIndex.put(file.toString(), ordinal);
+            return true;
+        };
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
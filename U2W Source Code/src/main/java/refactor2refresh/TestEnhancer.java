@@ -1,6 +1,5 @@
 package refactor2refresh;
 
-import com.github.javaparser.JavaParser;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
@@ -65,7 +64,7 @@ public class TestEnhancer {
         String outputFileName = fileName.substring(0, fileName.lastIndexOf(".")) + "_LLM.java";
         String outputFilePath = directory + File.separator + outputFileName;
 
-        CompilationUnit cu = new JavaParser().parse(Files.readString(path)).getResult().orElseThrow();
+        CompilationUnit cu = JavaParsers.detecting().getParser().parse(Files.readString(path)).getResult().orElseThrow();
 
         // Enable lexical preservation to maintain formatting
         LexicalPreservingPrinter.setup(cu);
@@ -234,7 +233,7 @@ public class TestEnhancer {
             String updatedMethodBody = addArgumentsToProviderMethod(providerMethod.toString(), newArgumentCalls);
 
             // Parse the updated method body and replace the original method
-            MethodDeclaration updatedMethod = new JavaParser().parseMethodDeclaration(updatedMethodBody).getResult()
+            MethodDeclaration updatedMethod = JavaParsers.detecting().getParser().parseMethodDeclaration(updatedMethodBody).getResult()
                     .orElseThrow();
             providerMethod.setBody(updatedMethod.getBody().orElseThrow());
         }
@@ -336,7 +335,7 @@ public class TestEnhancer {
             }
 
             // Parse the updated method body and replace the original
-            BlockStmt newBody = new JavaParser().parseBlock(methodBody).getResult().orElseThrow();
+            BlockStmt newBody = JavaParsers.detecting().getParser().parseBlock(methodBody).getResult().orElseThrow();
             paramTest.setBody(newBody);
         }
     }
@@ -451,7 +450,7 @@ public class TestEnhancer {
                         );
 
                         // Parse and replace the annotation
-                        new JavaParser().parseAnnotation(newAnnotationText).getResult().ifPresent(
+                        JavaParsers.detecting().getParser().parseAnnotation(newAnnotationText).getResult().ifPresent(
                                 newAnnotation -> annotation.replace(newAnnotation)
                         );
                     }
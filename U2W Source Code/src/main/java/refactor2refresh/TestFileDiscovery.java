@@ -0,0 +1,327 @@
+package refactor2refresh;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Finds the files of a repository that the tool should look at. Build output, VCS metadata and
+ * vendored directories are pruned as whole subtrees instead of being walked and filtered file by file.
+ *
+ * Configuration (comma-separated globs, matched against the path relative to the repository root):
+ * -Du2w.include=src/test/**   only files matching one of the globs
+ * -Du2w.exclude=legacy/**     files and directories matching one of the globs are skipped
+ * -Du2w.gitignore=true        also skip what the repository's .gitignore files ignore
+ */
+public class TestFileDiscovery {
+
+    static final String INCLUDE_PROPERTY = "u2w.include";
+    static final String EXCLUDE_PROPERTY = "u2w.exclude";
+    static final String GITIGNORE_PROPERTY = "u2w.gitignore";
+
+    static final Set<String> PRUNED_DIRECTORIES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            ".git", "node_modules", "target", "build", "generated-sources", ".idea", ".gradle")));
+
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final Path END = Path.of("");
+
+    private final Path root;
+    private final List<PathMatcher> includes;
+    private final List<PathMatcher> excludes;
+    private final boolean useGitignore;
+
+    TestFileDiscovery(Path root, List<String> includeGlobs, List<String> excludeGlobs, boolean useGitignore) {
+        this.root = root;
+        FileSystem fileSystem = root.getFileSystem();
+        this.includes = includeGlobs.stream().map(glob -> fileSystem.getPathMatcher("glob:" + glob)).collect(Collectors.toList());
+        this.excludes = excludeGlobs.stream().map(glob -> fileSystem.getPathMatcher("glob:" + glob)).collect(Collectors.toList());
+        this.useGitignore = useGitignore;
+    }
+
+    /**
+     * Discovery below the given root, configured by system properties.
+     */
+    public static TestFileDiscovery configured(Path root) {
+        return new TestFileDiscovery(root,
+                globs(System.getProperty(INCLUDE_PROPERTY)),
+                globs(System.getProperty(EXCLUDE_PROPERTY)),
+                Boolean.parseBoolean(System.getProperty(GITIGNORE_PROPERTY, "false")));
+    }
+
+    private static List<String> globs(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(value.split(",")).map(String::trim).filter(glob -> !glob.isEmpty()).collect(Collectors.toList());
+    }
+
+    /**
+     * Whether a file below the root, found some other way (e.g. in a git diff), passes the directory
+     * pruning and the include/exclude globs. .gitignore rules are not consulted.
+     */
+    public boolean accepts(Path file) {
+        Path relative = root.relativize(file);
+        for (int i = 0; i < relative.getNameCount() - 1; i++) {
+            if (PRUNED_DIRECTORIES.contains(relative.getName(i).toString())) {
+                return false;
+            }
+        }
+        return includedFile(relative);
+    }
+
+    private boolean includedFile(Path relative) {
+        if (excludes.stream().anyMatch(matcher -> matcher.matches(relative))) {
+            return false;
+        }
+        return includes.isEmpty() || includes.stream().anyMatch(matcher -> matcher.matches(relative));
+    }
+
+    /**
+     * All matching regular files, in the order Files.walk would list them. The walk runs on a
+     * background thread and hands paths over through a bounded queue, so consumers can start on the
+     * first files while the rest of the tree is still being walked. Close the stream to stop the walk early.
+     */
+    public Stream<Path> stream(Predicate<Path> fileFilter) {
+        BlockingQueue<Path> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Walker walker = new Walker(queue, fileFilter);
+        Thread producer = new Thread(walker, "u2w-discovery");
+        producer.setDaemon(true);
+        producer.start();
+
+        Iterator<Path> iterator = new Iterator<Path>() {
+            private Path next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException("Interrupted while discovering test files", e);
+                    }
+                }
+                if (next == END) {
+                    if (walker.failure instanceof IOException) {
+                        throw new UncheckedIOException((IOException) walker.failure);
+                    } else if (walker.failure != null) {
+                        throw new RuntimeException("Could not walk " + root, walker.failure);
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public Path next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Path path = next;
+                next = null;
+                return path;
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    walker.cancelled = true;
+                    queue.clear();
+                });
+    }
+
+    public List<Path> list(Predicate<Path> fileFilter) {
+        try (Stream<Path> paths = stream(fileFilter)) {
+            return paths.collect(Collectors.toList());
+        }
+    }
+
+    private class Walker extends SimpleFileVisitor<Path> implements Runnable {
+        private final BlockingQueue<Path> queue;
+        private final Predicate<Path> fileFilter;
+        // .gitignore rules of the directories currently being walked, by directory
+        private final Map<Path, List<GitignoreRule>> gitignoreRules = new HashMap<>();
+        volatile boolean cancelled;
+        volatile Exception failure;
+
+        Walker(BlockingQueue<Path> queue, Predicate<Path> fileFilter) {
+            this.queue = queue;
+            this.fileFilter = fileFilter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.walkFileTree(root, this);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            } finally {
+                putUntilCancelled(END);
+            }
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+            if (cancelled) {
+                return FileVisitResult.TERMINATE;
+            }
+            if (!dir.equals(root)) {
+                Path relative = root.relativize(dir);
+                if (PRUNED_DIRECTORIES.contains(dir.getFileName().toString())
+                        || excludes.stream().anyMatch(matcher -> matcher.matches(relative))
+                        || isIgnored(dir, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+            if (useGitignore) {
+                Path gitignore = dir.resolve(".gitignore");
+                if (Files.isRegularFile(gitignore)) {
+                    gitignoreRules.put(dir, GitignoreRule.parse(Files.readAllLines(gitignore)));
+                }
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (cancelled) {
+                return FileVisitResult.TERMINATE;
+            }
+            // Files.walk lists symbolic links too, and callers used to keep those pointing to regular files
+            boolean regularFile = attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(file));
+            if (regularFile && includedFile(root.relativize(file)) && !isIgnored(file, false) && fileFilter.test(file)) {
+                putUntilCancelled(file);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc) {
+            System.err.println("Could not read " + file + ": " + exc.getMessage());
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+            gitignoreRules.remove(dir);
+            return FileVisitResult.CONTINUE;
+        }
+
+        private boolean isIgnored(Path path, boolean directory) {
+            if (!useGitignore) {
+                return false;
+            }
+            // Rules of deeper .gitignore files take precedence, the last matching rule of a file wins
+            Boolean ignored = null;
+            for (Path dir = path.getParent(); dir != null && dir.startsWith(root); dir = dir.getParent()) {
+                List<GitignoreRule> rules = gitignoreRules.get(dir);
+                if (rules == null) {
+                    continue;
+                }
+                Path relative = dir.relativize(path);
+                for (GitignoreRule rule : rules) {
+                    if (rule.matches(relative, directory)) {
+                        ignored = !rule.negated;
+                    }
+                }
+                if (ignored != null) {
+                    return ignored;
+                }
+            }
+            return false;
+        }
+
+        private void putUntilCancelled(Path path) {
+            try {
+                while (!cancelled && !queue.offer(path, 100, TimeUnit.MILLISECONDS)) {
+                    // The consumer is slower than the walk, wait for room in the queue
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The subset of .gitignore syntax needed to skip build output and generated code: comments,
+     * negation (!), directory-only patterns (trailing /), anchored patterns (containing /) and the
+     * glob wildcards * ? [..] **.
+     */
+    static class GitignoreRule {
+        final PathMatcher matcher;
+        final boolean negated;
+        final boolean directoryOnly;
+        final boolean anchored;
+
+        private GitignoreRule(PathMatcher matcher, boolean negated, boolean directoryOnly, boolean anchored) {
+            this.matcher = matcher;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+        }
+
+        static List<GitignoreRule> parse(List<String> lines) {
+            List<GitignoreRule> rules = new ArrayList<>();
+            for (String line : lines) {
+                String pattern = line.trim();
+                if (pattern.isEmpty() || pattern.startsWith("#")) {
+                    continue;
+                }
+                boolean negated = pattern.startsWith("!");
+                if (negated) {
+                    pattern = pattern.substring(1);
+                }
+                boolean directoryOnly = pattern.endsWith("/");
+                if (directoryOnly) {
+                    pattern = pattern.substring(0, pattern.length() - 1);
+                }
+                boolean anchored = pattern.contains("/");
+                if (pattern.startsWith("/")) {
+                    pattern = pattern.substring(1);
+                }
+                if (pattern.isEmpty()) {
+                    continue;
+                }
+                PathMatcher matcher = Path.of("").getFileSystem().getPathMatcher("glob:" + pattern);
+                rules.add(new GitignoreRule(matcher, negated, directoryOnly, anchored));
+            }
+            return rules;
+        }
+
+        boolean matches(Path relative, boolean directory) {
+            if (directoryOnly && !directory) {
+                // A file inside an ignored directory is pruned with the directory
+                return false;
+            }
+            if (anchored) {
+                return matcher.matches(relative);
+            }
+            // Unanchored patterns match the name at any depth
+            return matcher.matches(relative.getFileName());
+        }
+    }
+}
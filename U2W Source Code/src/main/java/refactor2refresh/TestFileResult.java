@@ -14,7 +14,10 @@ public class TestFileResult {
     public Map<String, Integer> independentLogicsInTest; // # Separable components of test methods
     List<String> listPastaTests; // # List of test methods which has pasta
     int totalLocInObservedTests;
+    int prescreenedTests; // # Considered tests with at most one assertion, counted as not pasta without slicing
     Map<String, Integer> filteredTestsMap;
+    // Detection's slices of the pasta tests that Phase I can reuse, see Slices
+    Map<String, Slices> slicesOfPastaTests;
 
     public TestFileResult(){
         this.filePath = "";
@@ -25,6 +28,7 @@ public class TestFileResult {
         this.independentLogicsInTest = new HashMap<>();
         this.listPastaTests = new ArrayList<String>();
         this.totalLocInObservedTests = 0;
+        this.prescreenedTests = 0;
         this.filteredTestsMap = new HashMap<>() {{
             put("CTRL", 0);
             put("DS", 0);
@@ -33,8 +37,14 @@ public class TestFileResult {
             put("SLEEP", 0);
             put("MOCK", 0);
             put("OVERRIDE", 0);
+            put("PREFILTER", 0);
 
         }};
+        // A report column of zeros is only noise when no budget can run out
+        if (TimeBudget.isConfigured()) {
+            this.filteredTestsMap.put(TimeBudget.FILTER_KEY, 0);
+        }
+        this.slicesOfPastaTests = new HashMap<>();
     }
 
     TestFileResult(String filePath, int totalTests, int totalConsideredTests, int pastaCount, double pastaPercentage) {
@@ -46,6 +56,26 @@ public class TestFileResult {
         this.independentLogicsInTest = new HashMap<>();
         this.listPastaTests = new ArrayList<String>();
         this.totalLocInObservedTests = 0;
+        this.prescreenedTests = 0;
         this.filteredTestsMap = new HashMap<>();
+        this.slicesOfPastaTests = new HashMap<>();
+    }
+
+    /**
+     * The purified tests detection made of a pasta test, in a compact form: per assertion, the indices
+     * of the top-level statements its slice keeps, and the groups of assertions whose slices share a
+     * statement. Only recorded for tests whose purified tests Phase I would build identically.
+     */
+    static class Slices {
+        // number of top-level statements of the test, to tell that Phase I sees the same test
+        final int statementCount;
+        final int[][] keptStatements;
+        final List<List<Integer>> groups;
+
+        Slices(int statementCount, int[][] keptStatements, List<List<Integer>> groups) {
+            this.statementCount = statementCount;
+            this.keptStatements = keptStatements;
+            this.groups = groups;
+        }
     }
 }
\ No newline at end of file
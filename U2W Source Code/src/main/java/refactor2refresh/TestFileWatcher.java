@@ -0,0 +1,179 @@
+package refactor2refresh;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a test file, or the test files of a repository, and re-runs detection (and optionally
+ * Phase I and II) whenever one is saved. The JVM, the parser and the result cache (if turned on) stay
+ * warm between runs, so feedback for a single file arrives within a fraction of a second.
+ *
+ * Editors often write a file several times per save, so a file is only analyzed once it has not
+ * changed for -Du2w.watch.debounce milliseconds (default 200).
+ */
+public class TestFileWatcher {
+
+    static final String DEBOUNCE_PROPERTY = "u2w.watch.debounce";
+
+    private final Path root;
+    // null when a whole repository is watched
+    private final Path singleFile;
+    private final boolean fix;
+    private final long debounceMillis;
+    private final TestFileDiscovery discovery;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+    TestFileWatcher(Path path, boolean fix) {
+        Path normalized = path.toAbsolutePath().normalize();
+        this.singleFile = Files.isDirectory(normalized) ? null : normalized;
+        this.root = singleFile == null ? normalized : normalized.getParent();
+        this.fix = fix;
+        this.debounceMillis = Long.getLong(DEBOUNCE_PROPERTY, 200L);
+        this.discovery = TestFileDiscovery.configured(root);
+    }
+
+    /**
+     * Blocks until the thread is interrupted.
+     */
+    public static void watch(String path, boolean fix) throws IOException {
+        new TestFileWatcher(Paths.get(path), fix).run();
+    }
+
+    void run() throws IOException {
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            if (singleFile != null) {
+                register(watchService, root);
+            } else {
+                registerTree(watchService, root);
+            }
+            System.out.println("Watching " + (singleFile != null ? singleFile : root + " (" + watchedDirectories.size() + " directories)")
+                    + (fix ? ", refactoring" : "") + ". Press Ctrl+C to stop.");
+
+            // changed file => time of its last change, in the order the files first changed
+            Map<Path, Long> pending = new LinkedHashMap<>();
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key;
+                if (pending.isEmpty()) {
+                    key = watchService.take();
+                } else {
+                    long oldest = Collections.min(pending.values());
+                    key = watchService.poll(Math.max(1, oldest + debounceMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                }
+                if (key != null) {
+                    collectChanges(watchService, key, pending);
+                }
+
+                long now = System.currentTimeMillis();
+                for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<Path, Long> change = it.next();
+                    if (now - change.getValue() >= debounceMillis) {
+                        it.remove();
+                        analyze(change.getKey());
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void collectChanges(WatchService watchService, WatchKey key, Map<Path, Long> pending) throws IOException {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.err.println("Too many changes at once in " + directory + ", some may have been missed");
+                continue;
+            }
+            Path changed = directory.resolve((Path) event.context());
+            if (singleFile == null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                registerTree(watchService, changed);
+            } else if (isWatchedTestFile(changed) && Files.isRegularFile(changed)) {
+                pending.remove(changed);
+                pending.put(changed, System.currentTimeMillis());
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private boolean isWatchedTestFile(Path file) {
+        if (singleFile != null) {
+            return file.equals(singleFile);
+        }
+        return discovery.accepts(file) && Untangle2Weave.isAnalyzableTestFile(file);
+    }
+
+    private void analyze(Path file) {
+        System.out.println();
+        System.out.println("Changed: " + file);
+        long start = System.nanoTime();
+        List<TestFileResult> results = DetectionEngine.detect(Collections.singletonList(file));
+        long detectMillis = (System.nanoTime() - start) / 1_000_000;
+        if (results.isEmpty()) {
+            System.out.println("Not analyzed (" + detectMillis + " ms)");
+            return;
+        }
+        TestFileResult result = results.get(0);
+        StringBuilder pastaTests = new StringBuilder();
+        for (String test : result.listPastaTests) {
+            pastaTests.append(pastaTests.length() == 0 ? ": " : ", ")
+                    .append(test).append(" (").append(result.independentLogicsInTest.get(test)).append(")");
+        }
+        System.out.println("DAT tests: " + result.pastaCount + " of " + result.totalConsideredTests + " considered ("
+                + result.totalTests + " tests) in " + detectMillis + " ms" + pastaTests);
+
+        if (fix && result.pastaCount > 0) {
+            try {
+                long fixStart = System.nanoTime();
+                Untangle2Weave.createRefreshedTestFilesInSandbox(new AnalysisContext(), results);
+                System.out.println("Refactored in " + (System.nanoTime() - fixStart) / 1_000_000 + " ms");
+            } catch (Exception e) {
+                System.err.println("Error refactoring file: " + file);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void register(WatchService watchService, Path directory) throws IOException {
+        WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchedDirectories.put(key, directory);
+    }
+
+    // WatchService only reports changes of direct children, so every directory is registered
+    private void registerTree(WatchService watchService, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && TestFileDiscovery.PRUNED_DIRECTORIES.contains(dir.getFileName().toString())) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                register(watchService, dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,324 @@
+package refactor2refresh;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The part of a test file detection works on, without the AST: for every @Test method its filter
+ * outcome, its lines of logic, its number of top-level statements, and for every assertion the statements
+ * its purified test keeps after slicing.
+
+ *
+ * The IR is written by a full detection of the file and persisted keyed by the SHA-256 of the file
+ * content and IR_VERSION. Detection of an unchanged file, including detection limited to some of its
+ * test methods, is then replayed from the IR without parsing or slicing, with the same result and
+ * console output. -Du2w.ir.dir=DIR keeps the IRs in DIR; without it they are kept under ir/ in the
+ * directory of the result cache when the cache is on, and not at all otherwise. -Du2w.ir=true turns
+ * the IR on without a directory (~/.u2w/ir unless the cache is on), -Du2w.ir=false turns it off.
+ * Since a cached result is found before the IR, with the cache on the IR only saves work when a file's
+ * result is not cached under the same test methods, e.g. when detection is limited to some of them.
+ *
+ * The file format is a versioned binary layout read through a memory-mapped buffer: a header, a
+ * string table and the test methods, strings referred to by their index.
+ */
+final class TestMethodIR {
+
+    // Bump whenever a change alters what identifyAssertionPastas records, or how it filters and slices
+    static final int IR_VERSION = 6;
+    static final String IR_PROPERTY = "u2w.ir";
+    static final String IR_DIR_PROPERTY = "u2w.ir.dir";
+
+    private static final int MAGIC = 0x55325749; // "U2WI"
+
+    private static TestMethodIR.Store store;
+
+    // Set when identifyAssertionPastas skipped the file for its mocking annotations
+    boolean mocking;
+    final List<String> strings = new ArrayList<>();
+    final List<TestMethod> tests = new ArrayList<>();
+
+    static final class TestMethod {
+        int name;
+        boolean filtered;
+        // the filteredTestsMap key the filter counted the test under, -1 for none
+        int filterKey = -1;
+        int logicLines;
+        int statementCount;
+        final List<Assertion> assertions = new ArrayList<>();
+    }
+
+    static final class Assertion {
+        // the statement keys of the purified test, see Untangle2Weave.statementKeys; empty in a test with
+        // at most one assertion, which is not sliced
+        int[] statements;
+    }
+
+    /**
+     * @return the store configured by system properties, or null if the IR is turned off
+     */
+    static synchronized Store configured() {
+        String dir = System.getProperty(IR_DIR_PROPERTY);
+        boolean hasDir = dir != null && !dir.trim().isEmpty();
+        String enabled = System.getProperty(IR_PROPERTY);
+        ResultCache cache = ResultCache.configured();
+        if (enabled != null ? !Boolean.parseBoolean(enabled) : !hasDir && cache == null) {
+            return null;
+        }
+        if (store == null) {
+            Path directory;
+            if (hasDir) {
+                directory = Paths.get(dir.trim());
+            } else if (cache != null) {
+                directory = cache.directory.resolve("ir");
+            } else {
+                directory = Paths.get(System.getProperty("user.home"), ".u2w", "ir");
+            }
+            store = new Store(directory);
+        }
+        return store;
+    }
+
+    static String contentKey(ByteBuffer content) {
+        return ResultCache.sha256("ir" + IR_VERSION, null, content);
+    }
+
+    /**
+     * Replays identifyAssertionPastas on the recorded file: prints what it prints and returns what it returns.
+     */
+    TestFileResult detect(String filePath, Set<String> onlyMethods) {
+        if (mocking) {
+            System.out.println("Skipping file due to mocking annotations: " + filePath);
+            return null;
+        }
+        AtomicInteger totalTests = new AtomicInteger();
+        AtomicInteger totalConsideredTests = new AtomicInteger();
+        AtomicInteger AssertionPastaCount = new AtomicInteger();
+        AtomicInteger totalLocOfObservedTests = new AtomicInteger();
+        AtomicInteger prescreenedTests = new AtomicInteger();
+        Map<String, Integer> filteredTestsMap = new HashMap<>();
+        TestFileResult result = new TestFileResult(filePath, 0, 0, 0, 0.0);
+
+        for (TestMethod test : tests) {
+            String name = strings.get(test.name);
+            if (onlyMethods != null && !onlyMethods.contains(name)) {
+                continue;
+            }
+            totalTests.getAndIncrement();
+            if (test.filtered) {
+                if (test.filterKey >= 0) {
+                    filteredTestsMap.merge(strings.get(test.filterKey), 1, Integer::sum);
+                }
+                continue;
+            }
+            totalConsideredTests.getAndIncrement();
+            totalLocOfObservedTests.addAndGet(test.logicLines);
+            if (test.assertions.size() <= 1) {
+                prescreenedTests.getAndIncrement();
+                continue;
+            }
+
+            List<int[]> statementKeys = new ArrayList<>(test.assertions.size());
+            for (Assertion assertion : test.assertions) {
+                statementKeys.add(assertion.statements);
+            }
+            int separableComponents = Untangle2Weave.countSeparableComponents(statementKeys, test.statementCount);
+            if (separableComponents > 1) {
+                System.out.println(name + ":");
+                System.out.println(separableComponents + ", ");
+                result.independentLogicsInTest.put(name, separableComponents);
+                result.listPastaTests.add(name);
+                AssertionPastaCount.getAndIncrement();
+            }
+        }
+        return Untangle2Weave.finishAssertionPastaResult(result, totalTests, totalConsideredTests, AssertionPastaCount,
+                totalLocOfObservedTests, prescreenedTests, filteredTestsMap);
+    }
+
+    /**
+     * Collects the IR while identifyAssertionPastas runs on a file.
+     */
+    static final class Builder {
+        final TestMethodIR ir = new TestMethodIR();
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private TestMethod current;
+
+        int string(String value) {
+            return stringIndex.computeIfAbsent(value, v -> {
+                ir.strings.add(v);
+                return ir.strings.size() - 1;
+            });
+        }
+
+        void mocking() {
+            ir.mocking = true;
+        }
+
+        void test(String name) {
+            current = new TestMethod();
+            current.name = string(name);
+            ir.tests.add(current);
+        }
+
+        void filtered(String filterKey) {
+            current.filtered = true;
+            current.filterKey = filterKey == null ? -1 : string(filterKey);
+        }
+
+        void logicLines(int count) {
+            current.logicLines = count;
+        }
+
+        void statementCount(int count) {
+            current.statementCount = count;
+        }
+
+        void assertion(int[] statementKeys) {
+            Assertion assertion = new Assertion();
+            assertion.statements = statementKeys;
+            current.assertions.add(assertion);
+        }
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(IR_VERSION);
+            out.writeBoolean(mocking);
+            out.writeInt(strings.size());
+            for (String value : strings) {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(utf8.length);
+                out.write(utf8);
+            }
+            out.writeInt(tests.size());
+            for (TestMethod test : tests) {
+                out.writeInt(test.name);
+                out.writeBoolean(test.filtered);
+                out.writeInt(test.filterKey);
+                out.writeInt(test.logicLines);
+                out.writeInt(test.statementCount);
+                out.writeInt(test.assertions.size());
+                for (Assertion assertion : test.assertions) {
+                    writeInts(out, assertion.statements);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing to memory failed", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the IR, or null if buffer holds another version
+     */
+    static TestMethodIR fromBuffer(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != IR_VERSION) {
+            return null;
+        }
+        TestMethodIR ir = new TestMethodIR();
+        ir.mocking = buffer.get() != 0;
+        int stringCount = buffer.getInt();
+        for (int i = 0; i < stringCount; i++) {
+            byte[] utf8 = new byte[buffer.getInt()];
+            buffer.get(utf8);
+            ir.strings.add(new String(utf8, StandardCharsets.UTF_8));
+        }
+        int testCount = buffer.getInt();
+        for (int i = 0; i < testCount; i++) {
+            TestMethod test = new TestMethod();
+            test.name = buffer.getInt();
+            test.filtered = buffer.get() != 0;
+            test.filterKey = buffer.getInt();
+            test.logicLines = buffer.getInt();
+            test.statementCount = buffer.getInt();
+            int assertionCount = buffer.getInt();
+            for (int j = 0; j < assertionCount; j++) {
+                Assertion assertion = new Assertion();
+                assertion.statements = readInts(buffer);
+                test.assertions.add(assertion);
+            }
+            ir.tests.add(test);
+        }
+        return ir;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.getInt();
+        }
+        return values;
+    }
+
+    /**
+     * The persisted IRs, one file per key.
+     */
+    static final class Store {
+        final Path directory;
+
+        Store(Path directory) {
+            this.directory = directory;
+        }
+
+        private Path entryPath(String key) {
+            return directory.resolve(key.substring(0, 2)).resolve(key + ".ir");
+        }
+
+        /**
+         * @return the IR stored under key, or null on a miss or an unreadable entry
+         */
+        TestMethodIR load(String key) {
+            Path entryPath = entryPath(key);
+            if (!Files.isRegularFile(entryPath)) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(entryPath, StandardOpenOption.READ)) {
+                return fromBuffer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Ignoring unreadable IR " + entryPath + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        void save(String key, TestMethodIR ir) {
+            Path entryPath = entryPath(key);
+            try {
+                Files.createDirectories(entryPath.getParent());
+                // Write to a temporary file first so concurrent runs never map a partial entry
+                Path tmp = Files.createTempFile(entryPath.getParent(), key, ".tmp");
+                Files.write(tmp, ir.toBytes());
+                try {
+                    Files.move(tmp, entryPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, entryPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write IR " + entryPath + ": " + e.getMessage());
+            }
+        }
+    }
+}
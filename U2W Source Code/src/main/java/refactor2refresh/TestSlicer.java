@@ -0,0 +1,340 @@
+package refactor2refresh;
+
+import com.github.javaparser.ast.Node;
+import com.github.javaparser.ast.NodeList;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.AssignExpr;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.stmt.BlockStmt;
+import com.github.javaparser.ast.stmt.ExpressionStmt;
+import com.github.javaparser.ast.stmt.Statement;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The slices of all assertions of a test method from one pass over its statements, instead of
+ * purifying and slicing a clone of the test per assertion.
+ *
+ * performSlicing walks a purified test backwards and keeps a statement when it involves a variable the
+ * slice requires so far. What it asks about a statement (the variables of each argument, the receivers
+ * of its calls, the variable it assigns or declares) does not depend on the assertion, so it is collected
+ * once per top-level statement here and each slice is a backward pass over those summaries. A purified
+ * test is only built, as a clone of the test without the statements its slice drops, when it is emitted.
+ *
+ * The variable names and call receivers of a test are numbered, and the sets of a summary and the
+ * variables a slice requires are BitSets over those numbers, so a step of the pass is a few word-level
+ * intersects and ors. An argument is expanded with the @Before dependencies once, the first time a
+ * slice needs it.
+ *
+ * This gives the same slices as performSlicing when purifying only removes whole top-level statements,
+ * i.e. when every assert* call of the test is the expression of a top-level statement. of() returns
+ * null for the other tests, which are still sliced on clones.
+ */
+final class TestSlicer {
+
+    private enum Kind {
+        ASSERTION,
+        CALL,
+        ASSIGNMENT,
+        DECLARATION,
+        OTHER
+    }
+
+    // What performSlicing looks at in a top-level statement, as sets of name numbers
+    private static final class Summary {
+        final Kind kind;
+        // ASSERTION: the first assertion statement equal to this one, purifying keeps only that one
+        int firstEqualAssertion;
+        // CALL: the variables used by each argument
+        List<Set<String>> argumentNames;
+        BitSet[] argumentVariables;
+        // CALL: the same expanded with the @Before dependencies, when first needed
+        BitSet[] expandedArgumentVariables;
+        // CALL, ASSIGNMENT: the receivers of the calls in the statement and the variables those calls use
+        BitSet callScopesAndVariables;
+        // CALL: the variables used by the call, ASSIGNMENT: by the assigned value
+        BitSet variables;
+        // ASSIGNMENT
+        int target;
+        BitSet variablesWithCalls;
+        // DECLARATION: per declared variable, its name, callScopesAndVariables and variables of its initializer
+        int[] declaredNames;
+        BitSet[] initializerCallScopesAndVariables;
+        BitSet[] initializerVariables;
+
+        Summary(Kind kind) {
+            this.kind = kind;
+        }
+    }
+
+    private final MethodDeclaration testMethod;
+    private final Map<String, Set<String>> beforeMethodDependencies;
+    // The numbers of the variable names and call receivers of the test
+    private final Map<String, Integer> names = new HashMap<>();
+    private final List<Summary> summaries = new ArrayList<>();
+    // Per assertion, its top-level statement and the variables it requires before slicing
+    private int[] assertionStatements;
+    private BitSet[] assertionVariables;
+
+    private TestSlicer(MethodDeclaration testMethod, Map<String, Set<String>> beforeMethodDependencies) {
+        this.testMethod = testMethod;
+        this.beforeMethodDependencies = beforeMethodDependencies;
+    }
+
+    /**
+     * The slicer of testMethod, or null if purifying it modifies statements, see the class comment.
+     *
+     * @param assertions the assertions of testMethod, see Untangle2Weave.extractAssertions
+     */
+    static TestSlicer of(MethodDeclaration testMethod, List<MethodCallExpr> assertions, Map<String, Set<String>> beforeMethodDependencies) {
+        if (!testMethod.getBody().isPresent()) {
+            return null;
+        }
+        BlockStmt body = testMethod.getBody().get();
+        for (MethodCallExpr call : testMethod.findAll(MethodCallExpr.class)) {
+            if (call.getNameAsString().startsWith("assert") && !isTopLevelStatement(call, body)) {
+                return null;
+            }
+        }
+
+        TestSlicer slicer = new TestSlicer(testMethod, beforeMethodDependencies);
+        NodeList<Statement> statements = body.getStatements();
+        Map<Node, Integer> statementIndices = new IdentityHashMap<>();
+        Map<MethodCallExpr, Integer> firstAssertions = new HashMap<>();
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            statementIndices.put(statement, i);
+            Summary summary = slicer.summarize(statement);
+            if (summary.kind == Kind.ASSERTION) {
+                firstAssertions.putIfAbsent(statement.asExpressionStmt().getExpression().asMethodCallExpr(), i);
+                summary.firstEqualAssertion = firstAssertions.get(statement.asExpressionStmt().getExpression().asMethodCallExpr());
+            }
+            slicer.summaries.add(summary);
+        }
+
+        slicer.assertionStatements = new int[assertions.size()];
+        slicer.assertionVariables = new BitSet[assertions.size()];
+        for (int a = 0; a < assertions.size(); a++) {
+            Integer statement = assertions.get(a).getParentNode().map(statementIndices::get).orElse(null);
+            // Assertion chains (assertThat(x).isTrue()) have their assert call nested, and were rejected above
+            if (statement == null || slicer.summaries.get(statement).kind != Kind.ASSERTION) {
+                return null;
+            }
+            slicer.assertionStatements[a] = statement;
+            slicer.assertionVariables[a] = slicer.expanded(Untangle2Weave.getVariablesUsedInAssertion(assertions.get(a)));
+        }
+        return slicer;
+    }
+
+    int statementCount() {
+        return summaries.size();
+    }
+
+    /**
+     * Per assertion, the top-level statements its purified and sliced test keeps, in order.
+     */
+    List<int[]> keptStatements() {
+        List<int[]> keptStatements = new ArrayList<>(assertionStatements.length);
+        for (int a = 0; a < assertionStatements.length; a++) {
+            keptStatements.add(keptStatements(a));
+        }
+        return keptStatements;
+    }
+
+    private int[] keptStatements(int assertion) {
+        // Purifying drops everything after the first statement holding the assertion
+        int last = summaries.get(assertionStatements[assertion]).firstEqualAssertion;
+        BitSet required = (BitSet) assertionVariables[assertion].clone();
+        BitSet kept = new BitSet(last + 1);
+        kept.set(last);
+        for (int i = last - 1; i >= 0; i--) {
+            TimeBudget.check();
+            if (keeps(summaries.get(i), required)) {
+                kept.set(i);
+            }
+        }
+        return kept.stream().toArray();
+    }
+
+    // performSlicing's decision for one statement, adding what the statement requires to required if it is kept
+    private boolean keeps(Summary summary, BitSet required) {
+        switch (summary.kind) {
+            case ASSERTION:
+                // Removed when purifying
+                return false;
+            case CALL:
+                for (int j = 0; j < summary.argumentVariables.length; j++) {
+                    if (summary.argumentVariables[j].intersects(required)) {
+                        if (summary.expandedArgumentVariables[j] == null) {
+                            summary.expandedArgumentVariables[j] = expanded(summary.argumentNames.get(j));
+                        }
+                        required.or(summary.expandedArgumentVariables[j]);
+                        return true;
+                    }
+                }
+                if (summary.callScopesAndVariables.intersects(required)) {
+                    required.or(summary.variables);
+                    return true;
+                }
+                return false;
+            case ASSIGNMENT:
+                if (required.get(summary.target)) {
+                    required.or(summary.variables);
+                    return true;
+                }
+                if (summary.callScopesAndVariables.intersects(required)) {
+                    required.or(summary.variablesWithCalls);
+                    return true;
+                }
+                return false;
+            case DECLARATION:
+                // Every declared variable is looked at, even once the statement is dropped
+                boolean kept = true;
+                for (int v = 0; v < summary.declaredNames.length; v++) {
+                    if (required.get(summary.declaredNames[v]) || summary.initializerCallScopesAndVariables[v].intersects(required)) {
+                        required.or(summary.initializerVariables[v]);
+                    } else {
+                        kept = false;
+                    }
+                }
+                return kept;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The purified tests for the groups of dependent tests (see Untangle2Weave.findTestGroups), named
+     * like Phase I names them. Only the tests alone in their group are built, the others are null:
+     * their kept statements are the statements of the test method, unchanged.
+     */
+    List<MethodDeclaration> purifiedTests(List<int[]> keptStatements, List<List<Integer>> groups) {
+        List<MethodDeclaration> purifiedTests = new ArrayList<>(keptStatements.size());
+        for (int a = 0; a < keptStatements.size(); a++) {
+            purifiedTests.add(null);
+        }
+        for (List<Integer> group : groups) {
+            if (group.size() == 1) {
+                int a = group.get(0);
+                purifiedTests.set(a, purifiedTest(a, keptStatements.get(a)));
+            }
+        }
+        return purifiedTests;
+    }
+
+    private MethodDeclaration purifiedTest(int assertion, int[] kept) {
+        MethodDeclaration purifiedMethod = testMethod.clone();
+        purifiedMethod.setName(testMethod.getNameAsString() + "_" + (assertion + 1));
+        List<Statement> clonedStatements = new ArrayList<>(purifiedMethod.getBody().get().getStatements());
+        for (int i = 0, k = 0; i < clonedStatements.size(); i++) {
+            if (k < kept.length && kept[k] == i) {
+                k++;
+            } else {
+                clonedStatements.get(i).remove();
+            }
+        }
+        return purifiedMethod;
+    }
+
+    private static boolean isTopLevelStatement(MethodCallExpr call, BlockStmt body) {
+        Node parent = call.getParentNode().orElse(null);
+        return parent instanceof ExpressionStmt && parent.getParentNode().orElse(null) == body;
+    }
+
+    private Summary summarize(Statement statement) {
+        if (!statement.isExpressionStmt()) {
+            return new Summary(Kind.OTHER);
+        }
+        Expression expression = statement.asExpressionStmt().getExpression();
+        if (expression.isMethodCallExpr()) {
+            MethodCallExpr call = expression.asMethodCallExpr();
+            if (call.getNameAsString().startsWith("assert")) {
+                return new Summary(Kind.ASSERTION);
+            }
+            Summary summary = new Summary(Kind.CALL);
+            NodeList<Expression> arguments = call.getArguments();
+            summary.argumentNames = new ArrayList<>(arguments.size());
+            summary.argumentVariables = new BitSet[arguments.size()];
+            summary.expandedArgumentVariables = new BitSet[arguments.size()];
+            for (int j = 0; j < arguments.size(); j++) {
+                summary.argumentNames.add(Untangle2Weave.getVariablesUsedInExpression(arguments.get(j)));
+                summary.argumentVariables[j] = numbered(summary.argumentNames.get(j));
+            }
+            summary.callScopesAndVariables = callScopesAndVariables(call);
+            summary.variables = numbered(Untangle2Weave.getVariablesUsedInExpression(call));
+            return summary;
+        }
+        if (expression.isAssignExpr()) {
+            AssignExpr assignExpr = expression.asAssignExpr();
+            Summary summary = new Summary(Kind.ASSIGNMENT);
+            summary.target = number(assignExpr.getTarget().toString());
+            summary.callScopesAndVariables = callScopesAndVariables(assignExpr);
+            summary.variables = numbered(Untangle2Weave.getVariablesUsedInExpression(assignExpr.getValue()));
+            summary.variablesWithCalls = (BitSet) summary.variables.clone();
+            assignExpr.findAll(MethodCallExpr.class).forEach(call ->
+                    summary.variablesWithCalls.or(numbered(Untangle2Weave.getVariablesUsedInExpression(call))));
+            return summary;
+        }
+        if (expression.isVariableDeclarationExpr()) {
+            NodeList<VariableDeclarator> variables = expression.asVariableDeclarationExpr().getVariables();
+            Summary summary = new Summary(Kind.DECLARATION);
+            summary.declaredNames = new int[variables.size()];
+            summary.initializerCallScopesAndVariables = new BitSet[variables.size()];
+            summary.initializerVariables = new BitSet[variables.size()];
+            for (int v = 0; v < variables.size(); v++) {
+                VariableDeclarator var = variables.get(v);
+                summary.declaredNames[v] = number(var.getNameAsString());
+                summary.initializerCallScopesAndVariables[v] = var.getInitializer().map(this::callScopesAndVariables).orElseGet(BitSet::new);
+                summary.initializerVariables[v] = var.getInitializer()
+                        .map(initializer -> numbered(Untangle2Weave.getVariablesUsedInExpression(initializer))).orElseGet(BitSet::new);
+            }
+            return summary;
+        }
+        return new Summary(Kind.OTHER);
+    }
+
+    // What checkMethodExpressionsAndRequiredObjects matches for the calls in node
+    private BitSet callScopesAndVariables(Node node) {
+        BitSet scopesAndVariables = new BitSet();
+        node.walk(MethodCallExpr.class, call -> call.getScope().ifPresent(scope -> scopesAndVariables.set(number(scope.toString()))));
+        // The variables used by any of the calls, in one walk instead of one per call
+        node.walk(NameExpr.class, nameExpr -> {
+            for (Node parent = nameExpr.getParentNode().orElse(null); parent != null; parent = parent.getParentNode().orElse(null)) {
+                if (parent instanceof MethodCallExpr) {
+                    scopesAndVariables.set(number(nameExpr.getNameAsString()));
+                    return;
+                }
+                if (parent == node) {
+                    return;
+                }
+            }
+        });
+        return scopesAndVariables;
+    }
+
+    // The variables with what depends on them in the @Before methods, see expandVariablesUsingBeforeDependencies
+    private BitSet expanded(Set<String> variables) {
+        return numbered(Untangle2Weave.expandVariablesUsingBeforeDependencies(variables, beforeMethodDependencies));
+    }
+
+    private BitSet numbered(Set<String> variables) {
+        BitSet numbers = new BitSet();
+        for (String variable : variables) {
+            numbers.set(number(variable));
+        }
+        return numbers;
+    }
+
+    private int number(String name) {
+        return names.computeIfAbsent(name, key -> names.size());
+    }
+}
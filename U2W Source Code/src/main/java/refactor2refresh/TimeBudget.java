@@ -0,0 +1,132 @@
+package refactor2refresh;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cooperative time budgets for the expensive steps of a run, so a pathological test file (huge
+ * generated tests, deeply nested builder chains) cannot stall a whole batch.
+ *
+ * A budget is opened as a Scope around a file or a test method. A watchdog thread marks the scope
+ * as expired when its time is up, and the loops of detection, slicing and test grouping call check(),
+ * which throws Exceeded on the thread that owns an expired scope. Scopes nest: a test method's scope
+ * also expires with the scope of its file. Work stuck outside those loops (e.g. in the parser) is
+ * not interrupted.
+ *
+ * Tests that run out of time are counted under the TIMEOUT filter key, which is a column of the XLSX
+ * report when a budget is set. Such results depend on the machine and its load, so they are neither
+ * cached nor recorded as IR.
+ *
+ * -Du2w.budget.fileMillis=N    detection of one file, and grouping the similar tests of one file
+ * -Du2w.budget.methodMillis=N  detection of one test method
+ * Both default to 0, which means no budget.
+ */
+final class TimeBudget {
+
+    static final String FILE_PROPERTY = "u2w.budget.fileMillis";
+    static final String METHOD_PROPERTY = "u2w.budget.methodMillis";
+    // filteredTestsMap key for test methods that ran out of time
+    static final String FILTER_KEY = "TIMEOUT";
+
+    private static final long FILE_MILLIS = Math.max(0, Long.getLong(FILE_PROPERTY, 0L));
+    private static final long METHOD_MILLIS = Math.max(0, Long.getLong(METHOD_PROPERTY, 0L));
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+    private static ScheduledThreadPoolExecutor watchdog;
+
+    private TimeBudget() {
+    }
+
+    static boolean isConfigured() {
+        return FILE_MILLIS > 0 || METHOD_MILLIS > 0;
+    }
+
+    /**
+     * Thrown by check() once a scope of the current thread has expired.
+     */
+    static class Exceeded extends RuntimeException {
+        final String what;
+
+        Exceeded(String what) {
+            super("Time budget exceeded for " + what, null, false, false);
+            this.what = what;
+        }
+    }
+
+    static class Scope implements AutoCloseable {
+        final String what;
+        private final Scope parent;
+        private final ScheduledFuture<?> timer;
+        private volatile boolean expired;
+
+        private Scope(String what, long millis) {
+            this.what = what;
+            this.parent = CURRENT.get();
+            this.timer = millis > 0 ? watchdog().schedule(() -> expired = true, millis, TimeUnit.MILLISECONDS) : null;
+            CURRENT.set(this);
+        }
+
+        /**
+         * Whether this scope or one it is nested in has run out of time.
+         */
+        boolean expired() {
+            for (Scope scope = this; scope != null; scope = scope.parent) {
+                if (scope.expired) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            if (parent == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(parent);
+            }
+        }
+    }
+
+    static Scope forFile(String filePath) {
+        return new Scope(filePath, FILE_MILLIS);
+    }
+
+    static Scope forMethod(String methodName) {
+        return new Scope(methodName, METHOD_MILLIS);
+    }
+
+    /**
+     * Throws Exceeded if a scope of the current thread has expired. Cheap enough for inner loops.
+     */
+    static void check() {
+        if (FILE_MILLIS == 0 && METHOD_MILLIS == 0) {
+            return;
+        }
+        for (Scope scope = CURRENT.get(); scope != null; scope = scope.parent) {
+            if (scope.expired) {
+                throw new Exceeded(scope.what);
+            }
+        }
+    }
+
+    static boolean timedOut(TestFileResult result) {
+        return result != null && result.filteredTestsMap.getOrDefault(FILTER_KEY, 0) > 0;
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor watchdog() {
+        if (watchdog == null) {
+            watchdog = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "u2w-budget-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Most scopes close long before their time is up, do not keep their timers around
+            watchdog.setRemoveOnCancelPolicy(true);
+        }
+        return watchdog;
+    }
+}
@@ -0,0 +1,94 @@
+package refactor2refresh;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Thin client for U2WDaemon. Takes the same arguments as Untangle2Weave.main, so a script only has
+ * to swap the main class:
+ *
+ *   java -cp Untangle2Weave.jar refactor2refresh.U2WClient /path/to/repo detect
+ *
+ * The daemon's port is read from -Du2w.daemon.port (default 7878), and its token from the file the
+ * daemon wrote for that port (see U2WDaemon). If no daemon is listening, the operation runs in this
+ * JVM instead.
+ */
+public class U2WClient {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Please provide the path to the input file as an argument.");
+        }
+        String[] request = args.clone();
+        // The daemon may run in another working directory
+        request[0] = absolutePaths(args[0]);
+
+        URL url = new URL("http://127.0.0.1:" + U2WDaemon.configuredPort() + "/run");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        Path tokenFile = U2WDaemon.tokenFile(U2WDaemon.configuredPort());
+        if (Files.isReadable(tokenFile)) {
+            connection.setRequestProperty(U2WDaemon.TOKEN_HEADER, new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim());
+        }
+        int status;
+        try {
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(new JSONObject().put("args", new JSONArray(request)).toString().getBytes(StandardCharsets.UTF_8));
+            }
+            status = connection.getResponseCode();
+        } catch (ConnectException e) {
+            System.err.println("No U2W daemon on port " + U2WDaemon.configuredPort() + ", running in process");
+            Untangle2Weave.main(args);
+            return;
+        }
+
+        int exitCode = 1;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                status == 200 ? connection.getInputStream() : connection.getErrorStream(), StandardCharsets.UTF_8))) {
+            String line;
+            String pendingBlank = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(U2WDaemon.EXIT_PREFIX)) {
+                    exitCode = Integer.parseInt(line.substring(U2WDaemon.EXIT_PREFIX.length()).trim());
+                    break;
+                }
+                // The daemon puts a blank line before the exit status, hold blank lines back until the next line
+                if (line.isEmpty() && pendingBlank == null) {
+                    pendingBlank = line;
+                    continue;
+                }
+                if (pendingBlank != null) {
+                    System.out.println(pendingBlank);
+                    pendingBlank = null;
+                }
+                System.out.println(line);
+            }
+        }
+        if (status != 200 || exitCode != 0) {
+            System.exit(exitCode == 0 ? 1 : exitCode);
+        }
+    }
+
+    // Comma-separated lists of paths (allRepos, merge) are resolved one by one
+    private static String absolutePaths(String paths) {
+        String[] parts = paths.split(",");
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = Paths.get(parts[i].trim()).toAbsolutePath().normalize().toString();
+        }
+        return String.join(",", parts);
+    }
+}
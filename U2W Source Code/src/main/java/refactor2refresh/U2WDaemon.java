@@ -0,0 +1,205 @@
+package refactor2refresh;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps one warm JVM around for many runs. Listens on a loopback HTTP port and runs the operations
+ * of Untangle2Weave.main on request, so JavaParser, the result cache (if turned on) and the JIT stay
+ * warm between CI invocations. Use U2WClient to send requests.
+ *
+ * POST /run takes {"args": [path, operation, ...]} and streams the console output of the run back,
+ * followed by a last line "U2W-EXIT: 0" (or 1 if the run failed). POST /shutdown stops the daemon.
+ *
+ * Every request must carry the daemon's token in the X-U2W-Token header, other requests get 403. The
+ * token is random, made at startup and written to ~/.u2w/daemon-PORT.token, readable only by the
+ * user who started the daemon, so other local users cannot run operations with that user's rights.
+ * The file is deleted when the daemon stops.
+ *
+ * Requests run one at a time, since the operations report through the shared console.
+ * System properties such as -Du2w.threads are those the daemon was started with.
+ */
+public class U2WDaemon {
+
+    static final int DEFAULT_PORT = 7878;
+    static final String PORT_PROPERTY = "u2w.daemon.port";
+    static final String EXIT_PREFIX = "U2W-EXIT: ";
+    static final String TOKEN_HEADER = "X-U2W-Token";
+
+    // Operations that never return or that would start another daemon
+    private static final Set<String> UNSUPPORTED_OPERATIONS = new HashSet<>(Arrays.asList("daemon", "watch"));
+
+    private final HttpServer server;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final byte[] token;
+    private final Path tokenFile;
+
+    U2WDaemon(int port) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String tokenText = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        token = tokenText.getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        tokenFile = tokenFile(server.getAddress().getPort());
+        writeToken(tokenFile, tokenText);
+        server.createContext("/run", this::handleRun);
+        server.createContext("/shutdown", this::handleShutdown);
+        server.setExecutor(runnable -> new Thread(runnable, "u2w-daemon-request").start());
+    }
+
+    /**
+     * Blocks until a shutdown request arrives.
+     */
+    public static void serve(int port) throws IOException {
+        U2WDaemon daemon = new U2WDaemon(port);
+        daemon.server.start();
+        System.out.println("U2W daemon listening on " + daemon.server.getAddress());
+        try {
+            daemon.stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        daemon.server.stop(0);
+        Files.deleteIfExists(daemon.tokenFile);
+        System.out.println("U2W daemon stopped");
+    }
+
+    static int configuredPort() {
+        return Integer.getInteger(PORT_PROPERTY, DEFAULT_PORT);
+    }
+
+    static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".u2w", "daemon-" + port + ".token");
+    }
+
+    // Created with owner-only permissions, so the token is never readable by others, not even briefly
+    private static void writeToken(Path file, String token) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            Files.createFile(file);
+            File plain = file.toFile();
+            plain.setReadable(false, false);
+            plain.setWritable(false, false);
+            plain.setReadable(true, true);
+            plain.setWritable(true, true);
+        }
+        Files.write(file, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Rejects the request with 403 unless it carries the token
+    private boolean authorized(HttpExchange exchange) throws IOException {
+        String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (sent != null && MessageDigest.isEqual(token, sent.trim().getBytes(StandardCharsets.UTF_8))) {
+            return true;
+        }
+        sendText(exchange, 403, "Missing or wrong " + TOKEN_HEADER + ", see " + tokenFile + "\n");
+        return false;
+    }
+
+    private void handleRun(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorized(exchange)) {
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use POST\n");
+                return;
+            }
+            String[] args;
+            try {
+                JSONArray argsJson = new JSONObject(readBody(exchange.getRequestBody())).getJSONArray("args");
+                args = new String[argsJson.length()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = argsJson.getString(i);
+                }
+            } catch (RuntimeException e) {
+                sendText(exchange, 400, "Invalid request: " + e.getMessage() + "\n");
+                return;
+            }
+            if (args.length < 2 || UNSUPPORTED_OPERATIONS.contains(args[1])) {
+                sendText(exchange, 400, "Expected <path> <operation> [arguments], operation not one of " + UNSUPPORTED_OPERATIONS + "\n");
+                return;
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            // Length 0 means chunked, so the client sees the output while the run is going
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream body = exchange.getResponseBody();
+            long start = System.currentTimeMillis();
+            System.out.println("Running " + String.join(" ", args));
+            ConsoleCapture.Captured<Void> run = ConsoleCapture.redirect(body, () -> {
+                Untangle2Weave.main(args);
+                return null;
+            });
+            if (run.error != null) {
+                PrintStream errors = new PrintStream(body, true, "UTF-8");
+                run.error.printStackTrace(errors);
+            }
+            body.write(("\n" + EXIT_PREFIX + (run.error == null ? 0 : 1) + "\n").getBytes(StandardCharsets.UTF_8));
+            System.out.println("Finished " + args[1] + " in " + (System.currentTimeMillis() - start) + " ms"
+                    + (run.error == null ? "" : " with " + run.error));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException {
+        try {
+            if (!authorized(exchange)) {
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Use POST\n");
+                return;
+            }
+            sendText(exchange, 200, "Stopping\n");
+        } finally {
+            exchange.close();
+        }
+        stopped.countDown();
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+        }
+        return new String(buffer.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
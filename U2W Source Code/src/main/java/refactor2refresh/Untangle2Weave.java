@@ -9,44 +9,47 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.github.javaparser.ast.CompilationUnit;
 import com.github.javaparser.ast.Modifier;
 import com.github.javaparser.ast.body.*;
-import com.github.javaparser.ast.expr.LambdaExpr;
 import com.github.javaparser.ast.stmt.*;
-import com.github.javaparser.StaticJavaParser;
 import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.expr.*;
 import com.github.javaparser.ast.stmt.BlockStmt;
 import com.github.javaparser.ast.type.ClassOrInterfaceType;
+import com.github.javaparser.ast.type.Type;
+import com.github.javaparser.ast.visitor.NoCommentEqualsVisitor;
+import com.github.javaparser.ast.visitor.NoCommentHashCodeVisitor;
+import com.github.javaparser.printer.configuration.DefaultConfigurationOption;
+import com.github.javaparser.printer.configuration.DefaultPrinterConfiguration;
+import com.github.javaparser.printer.configuration.DefaultPrinterConfiguration.ConfigOption;
+import com.github.javaparser.printer.configuration.PrinterConfiguration;
 import com.google.googlejavaformat.java.Formatter;
 import com.google.googlejavaformat.java.FormatterException;
 import com.github.javaparser.ast.stmt.ExpressionStmt;
 import com.github.javaparser.ast.stmt.Statement;
-import com.github.javaparser.symbolsolver.JavaSymbolSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
-import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
 import dev.langchain4j.model.chat.ChatLanguageModel;
 import dev.langchain4j.model.openai.OpenAiChatModel;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import java.io.FileOutputStream;
 
 public class Untangle2Weave {
 
-    public static HashMap<String, TestAnalytics> analyticsMap = new HashMap<>();
-    static Map<Integer, Integer> separableComponentFrequency = new HashMap<>();
-    // key => TestClass#TestMethod
-    public static int TotalRedundantTests = 0;
-    public static int TotalNewPuts = 0;
     // Parameterizer
     protected static final File DEFAULT_OUTPUT_DIR = new File("./z-out-retrofit/");
     private static File outputDir = DEFAULT_OUTPUT_DIR;
 
+    private static final String ANALYTICS_XLSX_PATH = "/Users/monilnarang/Documents/Research Evaluations/analytics/Apr22/analysis.xlsx";
+
     private static String GPT_PROMPT_VALUE_SETS = "For this prompt, only output java code and nothing else, comments in the code is fine. Consider the below value sets of a parameterised unit test and the test itself written in Java. "+
             "                Could you please help me add more value sets to this test method so as to increase the coverage, cover the edge cases, and reveal bugs in the source code." +
             "                Please try to generate minimum number of such value sets. " +
@@ -66,16 +69,10 @@ public class Untangle2Weave {
             "Here is the test file to do for: ";
 
     static CompilationUnit configureJavaParserAndGetCompilationUnit(String filePath) throws FileNotFoundException {
-        // Configure JavaParser
-        CombinedTypeSolver combinedTypeSolver = new CombinedTypeSolver(new ReflectionTypeSolver());
-
-        // Configure JavaParser to use type resolution
-        JavaSymbolSolver symbolSolver = new JavaSymbolSolver(combinedTypeSolver);
-        StaticJavaParser.getConfiguration().setSymbolResolver(symbolSolver);
-        StaticJavaParser.getConfiguration().setAttributeComments(false);
+        // Parse for refactoring, see JavaParsers
         CompilationUnit cu;
         try{
-            cu = StaticJavaParser.parse(new File(filePath));
+            cu = CompilationUnitCache.shared().parse(JavaParsers.Profile.REFACTOR, Paths.get(filePath));
         } catch (Exception e) {
             System.out.println("Error parsing file: " + filePath);
             e.printStackTrace();
@@ -85,6 +82,38 @@ public class Untangle2Weave {
         return cu;
     }
 
+    /**
+     * Like configureJavaParserAndGetCompilationUnit(filePath), for a file whose content is still in memory
+     * (e.g. not yet written by the FixPipeline). The source is encoded the way writeSourceFile writes it, so
+     * the result is the same as parsing the written file.
+     */
+    static CompilationUnit configureJavaParserAndGetCompilationUnit(String filePath, String source) throws FileNotFoundException {
+        if (source == null) {
+            return configureJavaParserAndGetCompilationUnit(filePath);
+        }
+        try {
+            return CompilationUnitCache.shared().parse(JavaParsers.Profile.REFACTOR, filePath, source);
+        } catch (Exception e) {
+            System.out.println("Error parsing file: " + filePath);
+            e.printStackTrace();
+            throw new RuntimeException("Error parsing file: " + filePath, e);
+        }
+    }
+
+    /**
+     * Receives the files produced by Phase I and Phase II. The serial flow writes them right away,
+     * the FixPipeline hands them to its write stage.
+     */
+    interface SourceWriter {
+        void write(String filePath, String source) throws IOException;
+    }
+
+    static void writeSourceFile(String filePath, String source) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(filePath)) {
+            outputStream.write(source.getBytes());
+        }
+    }
+
     static NodeList<Node> getASTStatementsForMethodByName(CompilationUnit cu, String name) {
         NodeList<Statement> statements = null;
         Optional<MethodDeclaration> methodOpt = cu.findAll(MethodDeclaration.class).stream()
@@ -198,6 +227,7 @@ public class Untangle2Weave {
             NodeList<Node> statementNodes1 = generateCloneOfStatements(statementNodesListMap.get(testMethodName1));
             toPutTogether.add(new UnitTest(testMethodName1, statementNodes1));
             for (String testMethodName2 : listTestMethods) {
+                TimeBudget.check();
                 if (!testMethodName1.equals(testMethodName2) && !testsTaken.contains(testMethodName2)) {
                     NodeList<Node> statementNodes2 = generateCloneOfStatements(statementNodesListMap.get(testMethodName2));
                     if (areTestsSimilarEnoughToBeRetrofitted(statementNodes1, statementNodes2)) {
@@ -648,6 +678,41 @@ public class Untangle2Weave {
     }
 
     static List<MethodDeclaration> retrofitSimilarTestsTogether(List<List<UnitTest>> similarTestGroups, CompilationUnit cu) {
+        return retrofitSimilarTestsTogether(similarTestGroups, cu, null);
+    }
+
+    // The first LiteralExpr in this order is the one replaceLiteralAtPath replaces
+    private static List<LiteralExpr> literalsInBreadthFirstOrder(MethodDeclaration method) {
+        List<LiteralExpr> literals = new ArrayList<>();
+        if (method.getBody().isPresent()) {
+            Queue<Node> queue = new LinkedList<>();
+            queue.add(method.getBody().get());
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                if (node instanceof LiteralExpr) {
+                    literals.add((LiteralExpr) node);
+                }
+                queue.addAll(node.getChildNodes());
+            }
+        }
+        return literals;
+    }
+
+    // Whether inferType(values.get(0)) is the right type for all values: no nulls, one kind of literal
+    private static boolean haveLiteralType(List<LiteralExpr> values) {
+        for (LiteralExpr value : values) {
+            if (value instanceof NullLiteralExpr || value.getClass() != values.get(0).getClass()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param testFile the file cu was parsed from, used to resolve the types of parameters whose values
+     *                 are null or literals of different kinds; may be null
+     */
+    static List<MethodDeclaration> retrofitSimilarTestsTogether(List<List<UnitTest>> similarTestGroups, CompilationUnit cu, Path testFile) {
         List<MethodDeclaration> newPUTsList = new ArrayList<>();
         for( List<UnitTest> group : similarTestGroups) {
             if(group.size() < 2) {
@@ -693,7 +758,23 @@ public class Untangle2Weave {
 //                    }
 //                }
 
+                // Parameters that literals cannot type get the type expected where the first test has its
+                // value, which can only be resolved before the values are replaced
+                Map<Integer, Type> declaredTypes = new HashMap<>();
+                List<LiteralExpr> literals = literalsInBreadthFirstOrder(method);
                 int index = 0;
+                for (ArrayList<LiteralExpr> values : parameter_to_values_map.values()) {
+                    if (values != null && !values.isEmpty()) {
+                        if (!haveLiteralType(values) && testFile != null && index < literals.size()) {
+                            final int parameter = index;
+                            ProjectTypeSolver.forFile(testFile).expectedType(literals.get(index))
+                                    .ifPresent(type -> declaredTypes.put(parameter, type));
+                        }
+                        index++;
+                    }
+                }
+
+                index = 0;
                 for (Map.Entry<Integer, ArrayList<LiteralExpr>> entry : parameter_to_values_map.entrySet()) {
                     Integer pathId = entry.getKey();
                     ArrayList<LiteralExpr> values = entry.getValue();
@@ -714,8 +795,12 @@ public class Untangle2Weave {
                     if (values != null && !values.isEmpty()) {
                         LiteralExpr initialValue = values.get(0);
                         String parameterName = "param" + (index + 1);
-                        Class<?> parameterType = inferType(initialValue);
-                        method.addParameter(parameterType, parameterName);
+                        if (declaredTypes.containsKey(index)) {
+                            method.addParameter(declaredTypes.get(index), parameterName);
+                        } else {
+                            Class<?> parameterType = inferType(initialValue);
+                            method.addParameter(parameterType, parameterName);
+                        }
                         index++;
                     }
                 }
@@ -794,7 +879,7 @@ public class Untangle2Weave {
 
         try {
             // Parse the input file and set up the output CompilationUnit
-            CompilationUnit inputCompilationUnit = StaticJavaParser.parse(new File(inputFilePath));
+            CompilationUnit inputCompilationUnit = JavaParsers.refactoring().parse(new File(inputFilePath));
             CompilationUnit outputCompilationUnit = new CompilationUnit();
 
             // Copy imports and package declarations
@@ -855,7 +940,7 @@ public class Untangle2Weave {
 
         try {
             // Parse the input file for imports and class structure
-            CompilationUnit inputCompilationUnit = StaticJavaParser.parse(new File(inputFilePath));
+            CompilationUnit inputCompilationUnit = JavaParsers.refactoring().parse(new File(inputFilePath));
             CompilationUnit outputCompilationUnit = new CompilationUnit();
 
             // Copy import statements to the output CompilationUnit
@@ -872,7 +957,7 @@ public class Untangle2Weave {
                 modifiedMethodCode = modifiedMethodCode.replace("```java", "").replace("```", "").trim();
 
                 // Parse `modifiedMethodCode` as a BodyDeclaration, which preserves comments and formatting
-                BodyDeclaration<?> modifiedMethodBody = StaticJavaParser.parseBodyDeclaration(modifiedMethodCode);
+                BodyDeclaration<?> modifiedMethodBody = JavaParsers.refactoring().parseBodyDeclaration(modifiedMethodCode);
                 newClass.addMember(modifiedMethodBody);
             }
 
@@ -888,10 +973,28 @@ public class Untangle2Weave {
     }
 
     public static String createParameterizedTestFile(String originalFilePath, List<MethodDeclaration> newMethods, List<String> excludedMethods) throws IOException {
+        return createParameterizedTestFile(originalFilePath, null, newMethods, excludedMethods, Untangle2Weave::writeSourceFile).newFilePath;
+    }
+
+    static class ResultCreateParameterizedTestFile {
+        String newFilePath;
+        String newFileSource;
+
+        public ResultCreateParameterizedTestFile(String newFilePath, String newFileSource) {
+            this.newFilePath = newFilePath;
+            this.newFileSource = newFileSource;
+        }
+    }
+
+    /**
+     * @param originalSource content of originalFilePath if it has not been written yet, otherwise null
+     */
+    static ResultCreateParameterizedTestFile createParameterizedTestFile(String originalFilePath, String originalSource, List<MethodDeclaration> newMethods, List<String> excludedMethods, SourceWriter writer) throws IOException {
         // Load the original file
         File originalFile = new File(originalFilePath);
-        FileInputStream inputStream = new FileInputStream(originalFile);
-        CompilationUnit compilationUnit = StaticJavaParser.parse(inputStream);
+        CompilationUnit compilationUnit = originalSource != null
+                ? CompilationUnitCache.shared().parse(JavaParsers.Profile.REFACTOR, originalFilePath, originalSource)
+                : CompilationUnitCache.shared().parse(JavaParsers.Profile.REFACTOR, Paths.get(originalFilePath));
 
         // Add these lines right after parsing the original file
         compilationUnit.addImport("org.junit.jupiter.params.ParameterizedTest");
@@ -940,17 +1043,16 @@ public class Untangle2Weave {
         Path newFilePath = Paths.get(originalFile.getParent(), newFileName);
 
         // Write the updated CompilationUnit to the new file
-        try (FileOutputStream outputStream = new FileOutputStream(newFilePath.toFile())) {
-            outputStream.write(compilationUnit.toString().getBytes());
-        }
+        String newFileSource = compilationUnit.toString();
+        writer.write(newFilePath.toString(), newFileSource);
 
         System.out.println("Parameterized test file created at: " + newFilePath.toString());
-        return newFilePath.toString();
+        return new ResultCreateParameterizedTestFile(newFilePath.toString(), newFileSource);
     }
 
     public static String createPurifiedTestFile(String inputFilePath) throws IOException {
         // Parse the input Java test file
-        CompilationUnit inputCompilationUnit = StaticJavaParser.parse(new File(inputFilePath));
+        CompilationUnit inputCompilationUnit = JavaParsers.detecting().parse(new File(inputFilePath));
 
         // Get the original class and create the new class with "_Purified" suffix
         ClassOrInterfaceDeclaration originalClass = inputCompilationUnit.getClassByName(inputCompilationUnit.getType(0).getNameAsString())
@@ -1312,6 +1414,7 @@ public class Untangle2Weave {
         // Iterate over statements in reverse order to determine which ones to keep
         List<Statement> statements = method.getBody().orElseThrow().getStatements();
         for (int i = statements.size() - 1; i >= 0; i--) {
+            TimeBudget.check();
             Statement stmt = statements.get(i);
 
             // Check if the statement is an expression statement
@@ -1480,7 +1583,7 @@ public class Untangle2Weave {
     }
 
     // Helper method to recursively get all variables used in an expression
-    private static Set<String> getVariablesUsedInExpression(Expression expression) {
+    static Set<String> getVariablesUsedInExpression(Expression expression) {
         Set<String> variables = new HashSet<>();
         if (expression == null) return variables;
 
@@ -1488,34 +1591,6 @@ public class Untangle2Weave {
         return variables;
     }
 
-    public static boolean areTestsIndependent(List<String> test1Lines, List<String> test2Lines) {
-        // Use a HashSet for efficient lookups
-        Set<String> test1Set = new HashSet<>(test1Lines);
-
-        // Check if any line in test2Lines exists in test1Set
-        for (String line : test2Lines) {
-            if (test1Set.contains(line)) {
-                return false; // Common line found, tests are not independent
-            }
-        }
-        return true; // No common line found, tests are independent
-    }
-
-    public static List<String> extractAllLines2(MethodDeclaration test) {
-        List<String> lines = new ArrayList<>();
-        String[] bodyLines = test.getBody().toString().split("\n");
-        for (String line : bodyLines) {
-            line = line.trim();
-            if (!line.startsWith("//") && !line.isEmpty()) {
-                lines.add(line);
-            }
-        }
-        // remove the first and last lines which are { and }
-        lines.remove(0);
-        lines.remove(lines.size() - 1);
-        return lines;
-    }
-
     // Helper method to extract assertion lines from a method
     private static List<String> extractAssertionLines(MethodDeclaration method) {
         List<String> assertions = new ArrayList<>();
@@ -1526,24 +1601,7 @@ public class Untangle2Weave {
         });
         return assertions;
     }
-    private static List<String> extractNonAssertionLines(MethodDeclaration test) {
-        List<String> lines = new ArrayList<>();
-        String[] bodyLines = test.getBody().toString().split("\n");
-
-        for (String line : bodyLines) {
-            line = line.trim();
-            // Exclude assertions and comments
-            if (!line.startsWith("assert") && !line.startsWith("//") && !line.isEmpty()) {
-                lines.add(line);
-            }
-        }
-        // remove the first and last lines which are { and }
-        lines.remove(0);
-        lines.remove(lines.size() - 1);
-        return lines;
-    }
-
-    private static Map<String, Set<String>> extractBeforeMethodDependencies(ClassOrInterfaceDeclaration testClass) {
+    static Map<String, Set<String>> extractBeforeMethodDependencies(ClassOrInterfaceDeclaration testClass) {
         // Map to store variable dependencies
         // Key: Variable name
         // Value: Set of variables that depend on this variable
@@ -1656,62 +1714,133 @@ public class Untangle2Weave {
         dependencyMap.get(targetVariable).addAll(usedVariables);
     }
 
-    public static List<List<MethodDeclaration>> findTestGroups(List<MethodDeclaration> purifiedTestsOfOriginalTest) {
-        int n = purifiedTestsOfOriginalTest.size();
-        UnionFind uf = new UnionFind(n);
+    /**
+     * Per top-level statement of testMethod, whether it is one of its assertions, see isAssertionStatement.
+     */
+    static boolean[] assertionStatements(MethodDeclaration testMethod, List<MethodCallExpr> assertions) {
+        NodeList<Statement> statements = topLevelStatements(testMethod);
+        boolean[] assertionStatements = new boolean[statements.size()];
+        for (int i = 0; i < statements.size(); i++) {
+            assertionStatements[i] = isAssertionStatement(statements.get(i), assertions);
+        }
+        return assertionStatements;
+    }
 
-        // Compare each pair of tests
-        for (int i = 0; i < n; i++) {
-            MethodDeclaration test1 = purifiedTestsOfOriginalTest.get(i);
-            List<String> test1Lines = extractNonAssertionLines(test1);
+    private static final PrinterConfiguration NO_COMMENTS = new DefaultPrinterConfiguration()
+            .removeOption(new DefaultConfigurationOption(ConfigOption.PRINT_COMMENTS));
 
-            for (int j = i + 1; j < n; j++) {
-                MethodDeclaration test2 = purifiedTestsOfOriginalTest.get(j);
-                List<String> test2Lines = extractNonAssertionLines(test2);
+    /**
+     * Whether a purified test keeping statement does not depend on the others through it: one of the
+     * extracted assertions, or any statement starting with "assert" like the printed-line comparison
+     * dropped, Java assert statements and assertThat(..).isX(..) chains included.
+     */
+    static boolean isAssertionStatement(Statement statement, List<MethodCallExpr> assertions) {
+        if (statement.isAssertStmt()) {
+            return true;
+        }
+        if (!statement.isExpressionStmt()) {
+            return false;
+        }
+        Expression expression = statement.asExpressionStmt().getExpression();
+        return assertions.stream().anyMatch(call -> call == expression)
+                || expression.toString(NO_COMMENTS).startsWith("assert");
+    }
 
-                // If tests are not independent, union them
-                if (!areTestsIndependent(test1Lines, test2Lines)) {
-                    uf.union(i, j);
+    /**
+     * Per top-level statement of testMethod, the index of the first statement structurally equal to it,
+     * comments aside. Purified tests that keep equal statements depend on each other, like they did
+     * when their printed lines were compared.
+     */
+    static int[] statementIds(MethodDeclaration testMethod) {
+        NodeList<Statement> statements = topLevelStatements(testMethod);
+        int[] statementIds = new int[statements.size()];
+        Map<Integer, List<Integer>> firstStatementsByHash = new HashMap<>();
+        for (int i = 0; i < statements.size(); i++) {
+            Statement statement = statements.get(i);
+            List<Integer> sameHash = firstStatementsByHash.computeIfAbsent(NoCommentHashCodeVisitor.hashCode(statement), h -> new ArrayList<>());
+            statementIds[i] = i;
+            for (int j : sameHash) {
+                if (NoCommentEqualsVisitor.equals(statements.get(j), statement)) {
+                    statementIds[i] = j;
+                    break;
                 }
             }
+            if (statementIds[i] == i) {
+                sameHash.add(i);
+            }
         }
+        return statementIds;
+    }
 
-        // Convert index groups to test groups
-        List<List<Integer>> indexGroups = uf.getAllGroups();
-        List<List<MethodDeclaration>> testGroups = new ArrayList<>();
+    /**
+     * The statements that make a purified test depend on others: the non-assertion statements of the
+     * original test it keeps, by their statementIds.
+     *
+     * @param keptStatements the top-level statements of the original test the purified test keeps, see keptStatementIndices
+     */
+    static int[] statementKeys(int[] keptStatements, boolean[] assertionStatements, int[] statementIds) {
+        return Arrays.stream(keptStatements).filter(i -> !assertionStatements[i]).map(i -> statementIds[i]).toArray();
+    }
 
-        for (List<Integer> group : indexGroups) {
-            List<MethodDeclaration> testGroup = group.stream()
-                    .map(purifiedTestsOfOriginalTest::get)
-                    .collect(Collectors.toList());
-            testGroups.add(testGroup);
+    static List<int[]> statementKeys(List<int[]> keptStatements, MethodDeclaration testMethod, List<MethodCallExpr> assertions) {
+        boolean[] assertionStatements = assertionStatements(testMethod, assertions);
+        int[] statementIds = statementIds(testMethod);
+        List<int[]> statementKeys = new ArrayList<>(keptStatements.size());
+        for (int[] kept : keptStatements) {
+            statementKeys.add(statementKeys(kept, assertionStatements, statementIds));
         }
-
-        return testGroups;
+        return statementKeys;
     }
 
-    public static int countSeparableComponents(List<MethodDeclaration> purifiedTestsOfOriginalTest) {
-        int n = purifiedTestsOfOriginalTest.size();
-        UnionFind uf = new UnionFind(n);
-
-        // Compare each pair of tests
-        for (int i = 0; i < n; i++) {
-            MethodDeclaration test1 = purifiedTestsOfOriginalTest.get(i);
-            List<String> test1Lines = extractNonAssertionLines(test1);
+    /**
+     * The groups of purified tests that share a statement, directly or through other purified tests,
+     * as indices into statementKeys.
+     */
+    static List<List<Integer>> findTestGroups(List<int[]> statementKeys, int statementCount) {
+        return unionTestsSharingStatements(statementKeys, statementCount).getAllGroups();
+    }
 
-            for (int j = i + 1; j < n; j++) {
-                MethodDeclaration test2 = purifiedTestsOfOriginalTest.get(j);
-                List<String> test2Lines = extractNonAssertionLines(test2);
+    static int countSeparableComponents(List<int[]> statementKeys, int statementCount) {
+        // Return the number of disjoint sets
+        return unionTestsSharingStatements(statementKeys, statementCount).getSetCount();
+    }
 
-                // If tests are not independent, union them
-                if (!areTestsIndependent(test1Lines, test2Lines)) {
-                    uf.union(i, j);
+    /**
+     * Unions every pair of purified tests that share a statement key, without comparing the pairs:
+     * each statement is indexed under the first test that keeps it, which is unioned with the later
+     * tests that keep it too.
+     *
+     * @param statementCount the number of top-level statements of the original test, keys are below it
+     */
+    private static UnionFind unionTestsSharingStatements(List<int[]> statementKeys, int statementCount) {
+        int n = statementKeys.size();
+        int[] firstTestWithStatement = new int[statementCount];
+        Arrays.fill(firstTestWithStatement, -1);
+        // Per test, the later tests sharing one of the statements first kept by it, in ascending order
+        List<List<Integer>> laterTestsSharingStatement = new ArrayList<>(n);
+        for (int j = 0; j < n; j++) {
+            laterTestsSharingStatement.add(new ArrayList<>());
+            for (int statement : statementKeys.get(j)) {
+                if (firstTestWithStatement[statement] == -1) {
+                    firstTestWithStatement[statement] = j;
+                }
+                int i = firstTestWithStatement[statement];
+                List<Integer> later = laterTestsSharingStatement.get(i);
+                if (i != j && (later.isEmpty() || later.get(later.size() - 1) != j)) {
+                    later.add(j);
                 }
             }
         }
 
-        // Return the number of disjoint sets
-        return uf.getSetCount();
+        // In the order of a pairwise comparison, (i, j) with j ascending for ascending i, minus the
+        // pairs the first test with a statement has already connected
+        UnionFind uf = new UnionFind(n);
+        for (int i = 0; i < n; i++) {
+            for (int j : laterTestsSharingStatement.get(i)) {
+                uf.union(i, j);
+            }
+        }
+        return uf;
     }
 
     // Union-Find (Disjoint Set Union) data structure
@@ -1776,26 +1905,6 @@ public class Untangle2Weave {
         }
     }
 
-    private static boolean isWhenMethodInChain(Expression expr) {
-        if (!(expr instanceof MethodCallExpr)) {
-            return false;
-        }
-
-        MethodCallExpr methodCall = (MethodCallExpr) expr;
-
-        // If this is the "when" method, we found it
-        if (methodCall.getNameAsString().equals("when")) {
-            return true;
-        }
-
-        // Otherwise, check parent in the chain if it exists
-        if (methodCall.getScope().isPresent()) {
-            return isWhenMethodInChain(methodCall.getScope().get());
-        }
-
-        return false;
-    }
-
     public static boolean hasComplexControlStructures(MethodDeclaration method, Map<String, Integer> filteredTestsMap) {
         try {
 
@@ -1805,147 +1914,16 @@ public class Untangle2Weave {
                 return true;
             }
 
-            // Check for try-catch blocks
-            if (method.findAll(TryStmt.class).size() > 0) {
-                filteredTestsMap.merge("CTRL", 1, Integer::sum);
-                return true;
-            }
-
-            // Check for if-else statements
-            if (method.findAll(IfStmt.class).size() > 0) {
-                filteredTestsMap.merge("CTRL", 1, Integer::sum);
-                return true;
-            }
-
-            // Check for for loops
-            if (method.findAll(ForStmt.class).size() > 0 ||
-                    method.findAll(ForEachStmt.class).size() > 0) {
-                filteredTestsMap.merge("CTRL", 1, Integer::sum);
+            // Control flow, lambdas, Thread.sleep, mocking, anonymous classes with @Override, method
+            // references and data structures, found in one traversal
+            ComplexStructureVisitor visitor = new ComplexStructureVisitor();
+            method.walk(visitor);
+            String filterKey = visitor.filterKey();
+            if (filterKey != null) {
+                filteredTestsMap.merge(filterKey, 1, Integer::sum);
                 return true;
             }
 
-            // Check for while loops
-            if (method.findAll(WhileStmt.class).size() > 0 ||
-                    method.findAll(DoStmt.class).size() > 0) {
-                filteredTestsMap.merge("CTRL", 1, Integer::sum);
-                return true;
-            }
-
-            // Check for lambda expressions
-            if (method.findAll(LambdaExpr.class).size() > 0) {
-                filteredTestsMap.merge("LMDA", 1, Integer::sum);
-                return true;
-            }
-
-            // Check for Thread.sleep calls
-            for (MethodCallExpr methodCall : method.findAll(MethodCallExpr.class)) {
-                if (methodCall.getNameAsString().equals("sleep")) {
-                    // Check if it's specifically Thread.sleep
-                    if (methodCall.getScope().isPresent() &&
-                            methodCall.getScope().get().toString().equals("Thread")) {
-                        filteredTestsMap.merge("SLEEP", 1, Integer::sum);
-                        return true;
-                    }
-                }
-            }
-
-            // Check for Mockito-style mocking with when().thenReturn() pattern
-            for (MethodCallExpr methodCall : method.findAll(MethodCallExpr.class)) {
-                // Look for method calls that might be part of the chain
-                if (methodCall.getNameAsString().equals("thenReturn") ||
-                        methodCall.getNameAsString().equals("thenThrow") ||
-                        methodCall.getNameAsString().equals("thenAnswer")) {
-
-                    // Check if this is part of a method chain with "when"
-                    if (methodCall.getScope().isPresent() &&
-                            methodCall.getScope().get() instanceof MethodCallExpr) {
-
-                        MethodCallExpr parentCall = (MethodCallExpr) methodCall.getScope().get();
-                        // If the parent or any ancestor in the chain is "when", it's a mocking statement
-                        if (isWhenMethodInChain(parentCall)) {
-                            filteredTestsMap.merge("MOCK", 1, Integer::sum);
-                            return true;
-                        }
-                    }
-                }
-            }
-
-            // Check for inner classes or anonymous classes with @Override
-            if (!method.findAll(ObjectCreationExpr.class).isEmpty()) {
-                for (ObjectCreationExpr objCreation : method.findAll(ObjectCreationExpr.class)) {
-                    // Check if it's an anonymous class with body
-                    if (objCreation.getAnonymousClassBody().isPresent()) {
-                        // Check if any method in the anonymous class has @Override
-                        for (BodyDeclaration<?> member : objCreation.getAnonymousClassBody().get()) {
-                            if (member.isMethodDeclaration()) {
-                                MethodDeclaration innerMethod = (MethodDeclaration) member;
-                                if (innerMethod.getAnnotations().stream()
-                                        .anyMatch(a -> a.getNameAsString().equals("Override"))) {
-                                    filteredTestsMap.merge("OVERRIDE", 1, Integer::sum);
-                                    return true; // Found @Override in an anonymous class method
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-
-
-            // Check for method references (::)
-            if (!method.findAll(MethodReferenceExpr.class).isEmpty()) {
-                filteredTestsMap.merge("CTRL", 1, Integer::sum);
-                return true;
-            }
-
-            // Check for array declarations
-            if (!method.findAll(VariableDeclarationExpr.class).isEmpty()) {
-                for (VariableDeclarationExpr varDecl : method.findAll(VariableDeclarationExpr.class)) {
-                    if (varDecl.getElementType().isArrayType()) {
-                        filteredTestsMap.merge("DS", 1, Integer::sum);
-                        return true; // Explicit array declaration
-                    }
-
-                    // Check if the initializer is a method call returning an array
-                    for (VariableDeclarator var : varDecl.getVariables()) {
-                        if (var.getInitializer().isPresent()) {
-                            Expression init = var.getInitializer().get();
-                            if (init instanceof MethodCallExpr) {
-                                MethodCallExpr methodCall = (MethodCallExpr) init;
-                                // A simple heuristic: checking if the name contains 'getBytes' or similar
-                                if (methodCall.getNameAsString().equals("getBytes")) {
-                                    filteredTestsMap.merge("DS", 1, Integer::sum);
-                                    return true;
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-
-            // Check for array initializers in method calls
-            for (ArrayInitializerExpr arrayInit : method.findAll(ArrayInitializerExpr.class)) {
-                filteredTestsMap.merge("DS", 1, Integer::sum);
-                return true; // Found array initializer expression
-            }
-
-            // Check for array creation expressions
-            for (ArrayCreationExpr arrayCreation : method.findAll(ArrayCreationExpr.class)) {
-                filteredTestsMap.merge("DS", 1, Integer::sum);
-                return true; // Found explicit array creation like 'new URI[]'
-            }
-
-            // Check for complex data structures like List, Set, or Map
-            List<String> complexTypes = Arrays.asList("List", "Set", "Map");
-            for (VariableDeclarationExpr varDecl : method.findAll(VariableDeclarationExpr.class)) {
-                String type = varDecl.getElementType().asString();
-                for (String complexType : complexTypes) {
-                    if (type.contains(complexType)) {
-                        filteredTestsMap.merge("DS", 1, Integer::sum);
-                        return true;
-                    }
-                }
-            }
-
             return false;
         } catch (Exception e) {
             // If parsing fails, assume the method contains complex structures
@@ -2094,17 +2072,48 @@ public class Untangle2Weave {
         return assertions;
     }
 
-    private static TestFileResult identifyAssertionPastas(String inputFilePath) throws IOException {
+    static TestFileResult identifyAssertionPastas(String inputFilePath) throws IOException {
+        return identifyAssertionPastas(inputFilePath, null);
+    }
+
+    /**
+     * @param onlyMethods names of the test methods to analyze, or null to analyze every test method of the file
+     */
+    static TestFileResult identifyAssertionPastas(String inputFilePath, Set<String> onlyMethods) throws IOException {
         System.out.println("Identifying assertion pastas in file: " + inputFilePath);
         // Parse the input Java test file
-        CompilationUnit inputCompilationUnit = StaticJavaParser.parse(new File(inputFilePath));
+        CompilationUnit inputCompilationUnit = JavaParsers.detecting().parse(new File(inputFilePath));
+        return identifyAssertionPastas(inputFilePath, inputCompilationUnit, onlyMethods);
+    }
+
+    /**
+     * Detection on an already parsed test file, so parsing and detection can run as separate stages.
+     */
+    static TestFileResult identifyAssertionPastas(String inputFilePath, CompilationUnit inputCompilationUnit, Set<String> onlyMethods) {
+        return identifyAssertionPastas(inputFilePath, inputCompilationUnit, onlyMethods, null);
+    }
 
+    /**
+     * @param ir collects the TestMethodIR of the file while it is analyzed, may be null
+     */
+    static TestFileResult identifyAssertionPastas(String inputFilePath, CompilationUnit inputCompilationUnit, Set<String> onlyMethods,
+                                                  TestMethodIR.Builder ir) {
+        try (TimeBudget.Scope fileBudget = TimeBudget.forFile(inputFilePath)) {
+            return identifyAssertionPastas(inputFilePath, inputCompilationUnit, onlyMethods, ir, fileBudget);
+        }
+    }
+
+    private static TestFileResult identifyAssertionPastas(String inputFilePath, CompilationUnit inputCompilationUnit, Set<String> onlyMethods,
+                                                          TestMethodIR.Builder ir, TimeBudget.Scope fileBudget) {
         // Get the original class and create the new class with "_Purified" suffix
         ClassOrInterfaceDeclaration originalClass = inputCompilationUnit.getClassByName(inputCompilationUnit.getType(0).getNameAsString())
                 .orElseThrow(() -> new RuntimeException("Class not found in the file"));
         boolean containsMocking = hasMockingAnnotations(originalClass, inputCompilationUnit);
         if (containsMocking) {
             System.out.println("Skipping file due to mocking annotations: " + inputFilePath);
+            if (ir != null) {
+                ir.mocking();
+            }
             return null;
         }
 
@@ -2112,6 +2121,7 @@ public class Untangle2Weave {
         AtomicInteger totalConsideredTests = new AtomicInteger();
         AtomicInteger AssertionPastaCount = new AtomicInteger();
         AtomicInteger totalLocOfObservedTests = new AtomicInteger();
+        AtomicInteger prescreenedTests = new AtomicInteger();
         Map<String, Integer> filteredTestsMap = new HashMap<>();
 
         // Extract @Before method dependencies
@@ -2122,10 +2132,25 @@ public class Untangle2Weave {
         // For each test method, generate purified tests for each assertion
         originalClass.getMethods().stream()
                 .filter(method -> method.getAnnotationByName("Test").isPresent())
+                .filter(method -> onlyMethods == null || onlyMethods.contains(method.getNameAsString()))
 //                .filter(method -> !hasComplexControlStructures(method)) // ToDo: Count number of tests excluded
                 .forEach(testMethod -> {
                     totalTests.getAndIncrement();
+                    if (ir != null) {
+                        ir.test(testMethod.getNameAsString());
+                    }
+                    if (fileBudget.expired()) {
+                        // The file is out of time, the tests left are not analyzed
+                        filteredTestsMap.merge(TimeBudget.FILTER_KEY, 1, Integer::sum);
+                        return;
+                    }
+                    Map<String, Integer> filteredBefore = ir != null ? new HashMap<>(filteredTestsMap) : null;
                     if(hasComplexControlStructures(testMethod, filteredTestsMap)) {
+                        if (ir != null) {
+                            ir.filtered(filteredTestsMap.keySet().stream()
+                                    .filter(key -> !filteredTestsMap.get(key).equals(filteredBefore.get(key)))
+                                    .findFirst().orElse(null));
+                        }
                         return;
                     }
 
@@ -2135,86 +2160,83 @@ public class Untangle2Weave {
 //                        return; // Skip this test method
 //                    }
 
-                    totalLocOfObservedTests.addAndGet(extractTestLogicLineCount(inputCompilationUnit, testMethod.getNameAsString()));
+                    int logicLines = extractTestLogicLineCount(inputCompilationUnit, testMethod.getNameAsString());
+                    totalLocOfObservedTests.addAndGet(logicLines);
 
-                    AtomicInteger counter = new AtomicInteger(1);
-                    List<MethodDeclaration> purifiedTestsOfOriginalTest = new ArrayList<>();
-                    // Collect all assert statements for backward slicing
+                    TimeBudget.Scope methodBudget = TimeBudget.forMethod(testMethod.getNameAsString());
+                    try {
+                        // Collect all assert statements for backward slicing
 //                    List<MethodCallExpr> assertions = testMethod.findAll(MethodCallExpr.class)
 //                            .stream()
 //                            .filter(call -> call.getNameAsString().startsWith("assert"))
 //                            .collect(Collectors.toList());
-                    List<MethodCallExpr> assertions = extractAssertions(testMethod);
-
-                    HashMap<String, NodeList<Node>> statementNodesListMap = new HashMap<>();
-
-                    // Generate a separate test method for each assertion
-                    assertions.forEach(assertStatement -> {
-                        // Clone the original method to create an purified version
-                        MethodDeclaration purifiedMethod = testMethod.clone();
-                        String methodName = testMethod.getNameAsString() + "_" + counter.getAndIncrement();
-                        purifiedMethod.setName(methodName);
-
-                        // Remove all assertions except the current one
-                        purifiedMethod.findAll(MethodCallExpr.class).forEach(call -> {
-                            if (call.getNameAsString().startsWith("assert") && !call.equals(assertStatement)) {
-                                call.getParentNode().ifPresent(Node::remove);
-                            }
-                        });
-
-                        // New code to remove statements after the current assert statement
-                        List<Statement> statements = purifiedMethod.findAll(BlockStmt.class)
-                                .get(0).getStatements(); // Assuming the first BlockStmt is the method body
-
-                        int assertIndex = -1;
-                        for (int i = 0; i < statements.size(); i++) {
-                            if (statements.get(i).findFirst(MethodCallExpr.class)
-                                    .filter(call -> call.equals(assertStatement))
-                                    .isPresent()) {
-                                assertIndex = i;
-                                break;
-                            }
+                        List<MethodCallExpr> assertions = extractAssertions(testMethod);
+                        if (ir != null) {
+                            ir.logicLines(logicLines);
+                            ir.statementCount(topLevelStatements(testMethod).size());
                         }
-
-                        if (assertIndex != -1) {
-                            // Remove all statements after the assert statement
-                            for (int i = statements.size() - 1; i > assertIndex; i--) {
-                                statements.get(i).remove();
+                        if (assertions.size() <= 1) {
+                            // A single slice is a single component, the test cannot be pasta
+                            prescreenedTests.getAndIncrement();
+                            if (ir != null) {
+                                assertions.forEach(assertion -> ir.assertion(new int[0]));
                             }
+                            return;
                         }
 
-                        performSlicing(purifiedMethod, assertStatement, beforeMethodDependencies);
-
-                        // Add the purified test method to the list
-                        purifiedTestsOfOriginalTest.add(purifiedMethod);
-                        NodeList<Node> statementsNodes = new NodeList<>();
-                        List<Statement> purifiedStatements = purifiedMethod.getBody().get().getStatements();
-                        for (int i=0;i<purifiedStatements.size();i++) {
-                            // create copy of statements.get(i) and then add that copy to statementsNodes
-                            statementsNodes.add(purifiedStatements.get(i).clone());
-                        }
-                        statementNodesListMap.put(purifiedMethod.getNameAsString(), statementsNodes);
-                    });
+                        TestSlicer slicer = TestSlicer.of(testMethod, assertions, beforeMethodDependencies);
+                        List<int[]> keptStatements = slicer != null ? slicer.keptStatements()
+                                : keptStatementsOfClones(testMethod, assertions, beforeMethodDependencies);
 //                    boolean hasIndependentTests = hasIndependentTests(purifiedTestsOfOriginalTest); -> buggy code misses cases
-                    int separableComponents = countSeparableComponents(purifiedTestsOfOriginalTest);
-                    if (separableComponents > 1) {
-                        System.out.println(testMethod.getNameAsString() + ":");
-                        System.out.println(separableComponents + ", ");
-                        result.independentLogicsInTest.put(testMethod.getNameAsString(), separableComponents);
-                        try {
-                            result.listPastaTests.add(testMethod.getNameAsString());
-                        } catch (Exception e) {
-                            System.out.println("Error in adding test method to listPastaTests");
+                        List<int[]> statementKeys = statementKeys(keptStatements, testMethod, assertions);
+                        if (ir != null) {
+                            for (int i = 0; i < assertions.size(); i++) {
+                                ir.assertion(statementKeys.get(i));
+                            }
                         }
+                        int statementCount = topLevelStatements(testMethod).size();
+                        UnionFind components = unionTestsSharingStatements(statementKeys, statementCount);
+                        int separableComponents = components.getSetCount();
+                        if (separableComponents > 1) {
+                            System.out.println(testMethod.getNameAsString() + ":");
+                            System.out.println(separableComponents + ", ");
+                            result.independentLogicsInTest.put(testMethod.getNameAsString(), separableComponents);
+                            try {
+                                result.listPastaTests.add(testMethod.getNameAsString());
+                            } catch (Exception e) {
+                                System.out.println("Error in adding test method to listPastaTests");
+                            }
+                            if (slicedAsInPhaseI(testMethod)) {
+                                result.slicesOfPastaTests.put(testMethod.getNameAsString(), new TestFileResult.Slices(
+                                        statementCount, keptStatements.toArray(new int[0][]), components.getAllGroups()));
+                            }
 
-                        AssertionPastaCount.getAndIncrement();
+                            AssertionPastaCount.getAndIncrement();
+                        }
+                    } catch (TimeBudget.Exceeded e) {
+                        // Counted as timed out instead of considered
+                        totalConsideredTests.decrementAndGet();
+                        totalLocOfObservedTests.addAndGet(-logicLines);
+                        filteredTestsMap.merge(TimeBudget.FILTER_KEY, 1, Integer::sum);
+                        System.out.println(e.getMessage() + ", skipping test: " + testMethod.getNameAsString());
+                    } finally {
+                        methodBudget.close();
                     }
                 });
+        return finishAssertionPastaResult(result, totalTests, totalConsideredTests, AssertionPastaCount,
+                totalLocOfObservedTests, prescreenedTests, filteredTestsMap);
+    }
+
+    // Also used when detection is replayed from a TestMethodIR
+    static TestFileResult finishAssertionPastaResult(TestFileResult result, AtomicInteger totalTests, AtomicInteger totalConsideredTests,
+                                                     AtomicInteger AssertionPastaCount, AtomicInteger totalLocOfObservedTests,
+                                                     AtomicInteger prescreenedTests, Map<String, Integer> filteredTestsMap) {
         result.totalTests = totalTests.get();
         result.totalConsideredTests = totalConsideredTests.get();
         result.pastaCount = AssertionPastaCount.get();
         result.pastaPercentage = totalConsideredTests.get() > 0 ? (AssertionPastaCount.get() * 100.0 / totalConsideredTests.get()) : 0.0;
         result.totalLocInObservedTests = totalLocOfObservedTests.get();
+        result.prescreenedTests = prescreenedTests.get();
         result.filteredTestsMap = filteredTestsMap;
 
 //        TestFileResult result = new TestFileResult(inputFilePath, totalConsideredTests.get(), AssertionPastaCount.get(),
@@ -2226,14 +2248,85 @@ public class Untangle2Weave {
         return result;
     }
 
+    // The slices of tests TestSlicer does not handle, on a purified clone of the test per assertion
+    static List<int[]> keptStatementsOfClones(MethodDeclaration testMethod, List<MethodCallExpr> assertions,
+                                       Map<String, Set<String>> beforeMethodDependencies) {
+        List<int[]> keptStatements = new ArrayList<>(assertions.size());
+        for (MethodCallExpr assertStatement : assertions) {
+            TimeBudget.check();
+            // Clone the original method to create an purified version
+            MethodDeclaration purifiedMethod = testMethod.clone();
+            List<Statement> clonedStatements = new ArrayList<>(purifiedMethod.getBody().get().getStatements());
+
+            // Remove all assertions except the current one
+            purifiedMethod.findAll(MethodCallExpr.class).forEach(call -> {
+                if (call.getNameAsString().startsWith("assert") && !call.equals(assertStatement)) {
+                    call.getParentNode().ifPresent(Node::remove);
+                }
+            });
+
+            // New code to remove statements after the current assert statement
+            List<Statement> statements = purifiedMethod.findAll(BlockStmt.class)
+                    .get(0).getStatements(); // Assuming the first BlockStmt is the method body
+
+            int assertIndex = -1;
+            for (int i = 0; i < statements.size(); i++) {
+                if (statements.get(i).findFirst(MethodCallExpr.class)
+                        .filter(call -> call.equals(assertStatement))
+                        .isPresent()) {
+                    assertIndex = i;
+                    break;
+                }
+            }
+
+            if (assertIndex != -1) {
+                // Remove all statements after the assert statement
+                for (int i = statements.size() - 1; i > assertIndex; i--) {
+                    statements.get(i).remove();
+                }
+            }
+
+            performSlicing(purifiedMethod, assertStatement, beforeMethodDependencies);
+            keptStatements.add(keptStatementIndices(clonedStatements));
+        }
+        return keptStatements;
+    }
+
+    // Indices of the statements that are still in the purified test they were cloned into
+    private static int[] keptStatementIndices(List<Statement> clonedStatements) {
+        List<Integer> kept = new ArrayList<>();
+        for (int i = 0; i < clonedStatements.size(); i++) {
+            if (clonedStatements.get(i).getParentNode().isPresent()) {
+                kept.add(i);
+            }
+        }
+        return kept.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static NodeList<Statement> topLevelStatements(MethodDeclaration testMethod) {
+        return testMethod.getBody().map(BlockStmt::getStatements).orElseGet(NodeList::new);
+    }
+
+    /**
+     * Whether Phase I would purify testMethod exactly like detection, so it can reuse detection's slices.
+     * Phase I also removes the calls that have an assertion as a child, and it parses without
+     * attributing comments, which detection does; comments take part in printing and comparing nodes.
+     */
+    private static boolean slicedAsInPhaseI(MethodDeclaration testMethod) {
+        if (!testMethod.getBody().map(body -> body.getAllContainedComments().isEmpty()).orElse(false)) {
+            return false;
+        }
+        return testMethod.findAll(MethodCallExpr.class).stream()
+                .noneMatch(call -> !call.getNameAsString().startsWith("assert") && anyChildIsAssert(call));
+    }
+
     private static boolean isTestFile(String filePath) {
         // Get the file name from the path
         String fileName = Paths.get(filePath).getFileName().toString();
         // Check if it's a Java file and starts with "Test"
+        // (build directories such as target/ and build/ are pruned by TestFileDiscovery)
         return fileName.endsWith(".java") &&
-                fileName.contains("Test") &&
-                !filePath.contains("/target/") && // Exclude compiled files
-                !filePath.contains("/build/");    // Exclude build directories
+                fileName.contains("Test");
     }
 
     public static String getLastFolderName(String repositoryPath) {
@@ -2241,7 +2334,7 @@ public class Untangle2Weave {
         return path.getFileName().toString(); // Extracts the last folder name
     }
 
-    private static void generateReportAssertionPasta(List<TestFileResult> results, String repositoryPath) {
+    private static void generateReportAssertionPasta(AnalysisContext context, List<TestFileResult> results, String repositoryPath) {
         try {
             String reportPath = Paths.get("/Users/monilnarang/Documents/Research Evaluations/1May", getLastFolderName(repositoryPath) + ".md").toString();
             try (PrintWriter writer = new PrintWriter(new FileWriter(reportPath))) {
@@ -2261,9 +2354,7 @@ public class Untangle2Weave {
                         (totalPasta * 100.0 / totalConsideredTests) : 0.0;
 
                 for (TestFileResult result : results) {
-                    for (int components : result.independentLogicsInTest.values()) {
-                        separableComponentFrequency.put(components, separableComponentFrequency.getOrDefault(components, 0) + 1);
-                    }
+                    countSeparableComponents(context.separableComponentFrequency, result);
                 }
 
                 writer.println("\n- Total Test Files Analyzed: " + totalTestFiles);
@@ -2271,13 +2362,17 @@ public class Untangle2Weave {
                 writer.println("- Total Considered Test Methods: " + totalConsideredTests);
                 writer.println("- Total Assertion Pasta Cases: " + totalPasta);
                 writer.printf("- Overall Assertion Pasta Percentage: %.2f%%\n", overallPercentage);
+                int totalTimedOut = results.stream().mapToInt(r -> r.filteredTestsMap.getOrDefault(TimeBudget.FILTER_KEY, 0)).sum();
+                if (totalTimedOut > 0) {
+                    writer.println("- Test Methods Out of Time Budget: " + totalTimedOut);
+                }
 
 
                 // Write separable component frequency map
                 writer.println("\n### Separable Component Frequency");
                 writer.println("| Number of Separable Components | Frequency |");
                 writer.println("|--------------------------------|-----------|");
-                separableComponentFrequency.entrySet().stream()
+                context.separableComponentFrequency.entrySet().stream()
                         .sorted(Map.Entry.comparingByKey())
                         .forEach(entry -> {
                             writer.printf("| %-30d | %-9d |\n", entry.getKey(), entry.getValue());
@@ -2326,28 +2421,70 @@ public class Untangle2Weave {
         }
     }
 
+    static void countSeparableComponents(Map<Integer, Integer> separableComponentFrequency, TestFileResult result) {
+        for (int components : result.independentLogicsInTest.values()) {
+            separableComponentFrequency.put(components, separableComponentFrequency.getOrDefault(components, 0) + 1);
+        }
+    }
+
     public static List<TestFileResult> getAssertionPastaResultsInRepo(String pathToJavaRepository) throws IOException {
-        List<TestFileResult> results = new ArrayList<>();
+        return getAssertionPastaResultsInRepo(new AnalysisContext(), pathToJavaRepository);
+    }
 
-        // Find all Java test files in the repository
-        Files.walk(Paths.get(pathToJavaRepository))
+    static List<TestFileResult> getAssertionPastaResultsInRepo(AnalysisContext context, String pathToJavaRepository) throws IOException {
+        // Find all Java test files in the repository, keeping the walk order for the report
+        Path repository = Paths.get(pathToJavaRepository);
+        List<Path> testFiles = TestFileDiscovery.configured(repository).list(testFileFilter(context, repository));
+        // Process the test files concurrently, results come back in the same order
+        return DetectionEngine.detect(testFiles);
+    }
+
+    /**
+     * The test files to analyze, limited to the configured shard if the run is sharded.
+     */
+    private static Predicate<Path> testFileFilter(AnalysisContext context, Path repository) {
+        Shard shard = Shard.configured();
+        if (shard == null) {
+            return Untangle2Weave::isAnalyzableTestFile;
+        }
+        return shard.filter(repository, Untangle2Weave::isAnalyzableTestFile, context.discoveryIndex);
+    }
+
+    static boolean isAnalyzableTestFile(Path path) {
+        return isTestFile(path.toString())
+                && !path.toString().matches(".*(_Purified|_Parameterized|_Parameterized_GPT)\\.java$");
+    }
+
+    /**
+     * Like getAssertionPastaResultsInRepo, but only for the test files changed relative to baseRef.
+     *
+     * @param onlyChangedMethods if true, only the test methods touched by the diff are analyzed
+     */
+    public static List<TestFileResult> getAssertionPastaResultsInDiff(String pathToJavaRepository, String baseRef, boolean onlyChangedMethods) throws IOException {
+        Map<Path, Set<String>> onlyMethods = new HashMap<>();
+        List<Path> testFiles = getChangedTestFiles(pathToJavaRepository, baseRef, onlyChangedMethods ? onlyMethods : null);
+        return DetectionEngine.detect(testFiles, onlyMethods);
+    }
+
+    /**
+     * @param onlyMethods if not null, receives the test methods touched by the diff for each file
+     */
+    private static List<Path> getChangedTestFiles(String pathToJavaRepository, String baseRef, Map<Path, Set<String>> onlyMethods) throws IOException {
+        GitDiffScope scope = GitDiffScope.compute(pathToJavaRepository, baseRef);
+        TestFileDiscovery discovery = TestFileDiscovery.configured(Paths.get(pathToJavaRepository));
+        List<Path> testFiles = scope.changedFiles().stream()
                 .filter(Files::isRegularFile)
-                .filter(path -> isTestFile(path.toString()))
-                .filter(path -> !path.toString().matches(".*(_Purified|_Parameterized|_Parameterized_GPT)\\.java$"))
-                .forEach(path -> {
-                    try {
-                        // Process the test file
-                        // Parse the output to extract metrics
-                        TestFileResult result = identifyAssertionPastas(path.toString());
-                        if (result != null) {
-                            results.add(result);
-                        }
-                    } catch (Exception e) {
-                        System.err.println("Error processing file: " + path);
-                        e.printStackTrace();
-                    }
-                });
-        return results;
+                .filter(discovery::accepts)
+                .filter(Untangle2Weave::isAnalyzableTestFile)
+                .collect(Collectors.toList());
+        System.out.println("Changed test files since " + baseRef + ": " + testFiles.size());
+
+        if (onlyMethods != null) {
+            for (Path testFile : testFiles) {
+                onlyMethods.put(testFile, scope.changedTestMethods(testFile));
+            }
+        }
+        return testFiles;
     }
 
     public static ClassOrInterfaceDeclaration createNewClassWithoutTests(ClassOrInterfaceDeclaration originalClass) {
@@ -2394,22 +2531,31 @@ public class Untangle2Weave {
     }
 
     public static String createJavaClassFromClassDeclarationObject(ClassOrInterfaceDeclaration newClass, String filePath, CompilationUnit inputCompilationUnit) {
-        CompilationUnit outputCompilationUnit = new CompilationUnit();
-        outputCompilationUnit.setPackageDeclaration(inputCompilationUnit.getPackageDeclaration().orElse(null));
-        outputCompilationUnit.getImports().addAll(inputCompilationUnit.getImports());
-        outputCompilationUnit.addType(newClass);
         String purifiedOutputFilePath = filePath.replace(".java", "_Purified.java");
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(purifiedOutputFilePath))) {
-            writer.write(outputCompilationUnit.toString());
+        try {
+            writeSourceFile(purifiedOutputFilePath, createPurifiedSource(newClass, inputCompilationUnit));
         } catch (IOException e) {
             System.err.println("Error writing output to file: " + purifiedOutputFilePath);
         }
         return purifiedOutputFilePath;
     }
 
+    static String createPurifiedSource(ClassOrInterfaceDeclaration newClass, CompilationUnit inputCompilationUnit) {
+        return createPurifiedCompilationUnit(newClass, inputCompilationUnit).toString();
+    }
+
+    static CompilationUnit createPurifiedCompilationUnit(ClassOrInterfaceDeclaration newClass, CompilationUnit inputCompilationUnit) {
+        CompilationUnit outputCompilationUnit = new CompilationUnit();
+        outputCompilationUnit.setPackageDeclaration(inputCompilationUnit.getPackageDeclaration().orElse(null));
+        outputCompilationUnit.getImports().addAll(inputCompilationUnit.getImports());
+        outputCompilationUnit.addType(newClass);
+        return outputCompilationUnit;
+    }
+
     static class ResultCreateNewClassFileWithSplittedTests {
         String newClassFilePath;
         int newSeparatedTests;
+        String newClassSource; // content of newClassFilePath, which may not be written yet
         public ResultCreateNewClassFileWithSplittedTests(String newClassFilePath, int newSeparatedTests) {
             this.newClassFilePath = newClassFilePath;
             this.newSeparatedTests = newSeparatedTests;
@@ -2417,15 +2563,29 @@ public class Untangle2Weave {
     }
 
     public static ResultCreateNewClassFileWithSplittedTests createNewClassFileWithSplittedTests(TestFileResult result) throws IOException {
-        CompilationUnit inputCompilationUnit = StaticJavaParser.parse(new File(result.filePath));
+        return createNewClassFileWithSplittedTests(result, Untangle2Weave::writeSourceFile);
+    }
+
+    static ResultCreateNewClassFileWithSplittedTests createNewClassFileWithSplittedTests(TestFileResult result, SourceWriter writer) throws IOException {
+        CompilationUnit inputCompilationUnit = CompilationUnitCache.shared().parse(JavaParsers.Profile.REFACTOR, Paths.get(result.filePath));
         ClassOrInterfaceDeclaration originalClass = inputCompilationUnit.getClassByName(inputCompilationUnit.getType(0).getNameAsString())
                 .orElseThrow(() -> new RuntimeException("Class not found in the file"));
 
         ClassOrInterfaceDeclaration newClass = createNewClassWithoutTests(originalClass);
         ResultSeparateIndependentAssertionClustersAndAddToClass resultY = separateIndependentAssertionClustersAndAddToClass(originalClass, newClass, result);
-        String newClassFilePath = createJavaClassFromClassDeclarationObject(resultY.newClass, result.filePath, inputCompilationUnit);
-        return new ResultCreateNewClassFileWithSplittedTests(newClassFilePath, resultY.newSeparatedTests);
-
+        String newClassFilePath = result.filePath.replace(".java", "_Purified.java");
+        CompilationUnit newClassCompilationUnit = createPurifiedCompilationUnit(resultY.newClass, inputCompilationUnit);
+        String newClassSource = newClassCompilationUnit.toString();
+        // Phase II continues from this tree instead of parsing the source again
+        CompilationUnitCache.shared().handOff(JavaParsers.Profile.REFACTOR, newClassFilePath, newClassSource, newClassCompilationUnit);
+        try {
+            writer.write(newClassFilePath, newClassSource);
+        } catch (IOException e) {
+            System.err.println("Error writing output to file: " + newClassFilePath);
+        }
+        ResultCreateNewClassFileWithSplittedTests resultX = new ResultCreateNewClassFileWithSplittedTests(newClassFilePath, resultY.newSeparatedTests);
+        resultX.newClassSource = newClassSource;
+        return resultX;
     }
 
     static class ResultSeparateIndependentAssertionClustersAndAddToClass {
@@ -2478,7 +2638,31 @@ public class Untangle2Weave {
 //                            .collect(Collectors.toList());
                     List<MethodCallExpr> assertions = extractAssertions(testMethod);
 
+                    TestFileResult.Slices slices = reusableSlices(originalClass, testMethod, assertions, result);
+                    TestSlicer slicer = TestSlicer.of(testMethod, assertions, beforeMethodDependencies);
+                    if (slices != null || slicer != null) {
+                        List<int[]> keptStatements;
+                        List<List<Integer>> dependentPurifiedTestGroups;
+                        if (slices != null) {
+                            // Detection has sliced this test already
+                            keptStatements = Arrays.asList(slices.keptStatements);
+                            dependentPurifiedTestGroups = slices.groups;
+                        } else {
+                            keptStatements = slicer.keptStatements();
+                            dependentPurifiedTestGroups = findTestGroups(statementKeys(keptStatements, testMethod, assertions),
+                                    slicer.statementCount());
+                        }
+                        List<MethodDeclaration> purifiedTests = slicer != null ? slicer.purifiedTests(keptStatements, dependentPurifiedTestGroups)
+                                : purifiedTestsFromSlices(testMethod, assertions, slices);
+                        List<MethodDeclaration> clusteredTests = clusterDependentPurifiedTests(purifiedTests, keptStatements,
+                                dependentPurifiedTestGroups, testMethod);
+                        newSeparatedTests.addAndGet(clusteredTests.size());
+                        clusteredTests.forEach(newClass::addMember);
+                        return;
+                    }
+
                     HashMap<String, NodeList<Node>> statementNodesListMap = new HashMap<>();
+                    List<int[]> keptStatements = new ArrayList<>(assertions.size());
 
                     // Generate a separate test method for each assertion
                     assertions.forEach(assertStatement -> {
@@ -2486,16 +2670,9 @@ public class Untangle2Weave {
                         MethodDeclaration purifiedMethod = testMethod.clone();
                         String methodName = testMethod.getNameAsString() + "_" + counter.getAndIncrement();
                         purifiedMethod.setName(methodName);
+                        List<Statement> clonedStatements = new ArrayList<>(purifiedMethod.getBody().get().getStatements());
 
-                        // Remove all assertions except the current one
-                        // First, handle direct MethodCallExpr assertions
-                        purifiedMethod.findAll(MethodCallExpr.class).forEach(call -> {
-                            if(call.getNameAsString().startsWith("assert") || anyChildIsAssert(call)) {
-                                if(!call.equals(assertStatement)){
-                                    call.getParentNode().ifPresent(Node::remove);
-                                }
-                            }
-                        });
+                        removeOtherAssertions(purifiedMethod, assertStatement);
 
                         // New code to remove statements after the current assert statement
                         List<Statement> statements = purifiedMethod.findAll(BlockStmt.class)
@@ -2520,103 +2697,142 @@ public class Untangle2Weave {
 
                         performSlicing(purifiedMethod, assertStatement, beforeMethodDependencies);
                         purifiedTestsOfOriginalTest.add(purifiedMethod);
+                        keptStatements.add(keptStatementIndices(clonedStatements));
 
                         // Add the purified-> Separated test method to the new class
 //                        newClass.addMember(purifiedMethod);
                     });
-                    List<MethodDeclaration> clusteredTests = clusterDependentPurifiedTests(purifiedTestsOfOriginalTest, testMethod);
+                    List<List<Integer>> dependentPurifiedTestGroups = findTestGroups(statementKeys(keptStatements, testMethod, assertions),
+                            topLevelStatements(testMethod).size());
+                    List<MethodDeclaration> clusteredTests = clusterDependentPurifiedTests(purifiedTestsOfOriginalTest, keptStatements,
+                            dependentPurifiedTestGroups, testMethod);
                     newSeparatedTests.addAndGet(clusteredTests.size());
                     clusteredTests.forEach(newClass::addMember);
                 });
         return new ResultSeparateIndependentAssertionClustersAndAddToClass(newClass, newSeparatedTests.get());
     }
 
-    public static List<MethodDeclaration> clusterDependentPurifiedTests(List<MethodDeclaration> purifiedTestsOfOriginalTest, MethodDeclaration originalTest) {
-        List<List<MethodDeclaration>> dependentPurifiedTestGroups = findTestGroups(purifiedTestsOfOriginalTest);
+    // Remove all assertions except the current one
+    private static void removeOtherAssertions(MethodDeclaration purifiedMethod, MethodCallExpr assertStatement) {
+        // First, handle direct MethodCallExpr assertions
+        purifiedMethod.findAll(MethodCallExpr.class).forEach(call -> {
+            if(call.getNameAsString().startsWith("assert") || anyChildIsAssert(call)) {
+                if(!call.equals(assertStatement)){
+                    call.getParentNode().ifPresent(Node::remove);
+                }
+            }
+        });
+    }
+
+    // The slices detection recorded for testMethod, or null if they do not fit the test Phase I sees
+    private static TestFileResult.Slices reusableSlices(ClassOrInterfaceDeclaration originalClass, MethodDeclaration testMethod,
+                                                        List<MethodCallExpr> assertions, TestFileResult result) {
+        TestFileResult.Slices slices = result.slicesOfPastaTests.get(testMethod.getNameAsString());
+        if (slices == null
+                || slices.statementCount != topLevelStatements(testMethod).size()
+                || slices.keptStatements.length != assertions.size()) {
+            return null;
+        }
+        // The slices are recorded by name, overloaded tests would share them
+        long testsWithName = originalClass.getMethods().stream()
+                .filter(method -> method.getAnnotationByName("Test").isPresent())
+                .filter(method -> method.getNameAsString().equals(testMethod.getNameAsString()))
+                .count();
+        return testsWithName == 1 ? slices : null;
+    }
+
+    /**
+     * The purified tests of testMethod as separateIndependentAssertionClustersAndAddToClass builds them,
+     * with the statements detection's slicing kept instead of slicing again.
+     */
+    private static List<MethodDeclaration> purifiedTestsFromSlices(MethodDeclaration testMethod, List<MethodCallExpr> assertions,
+                                                                  TestFileResult.Slices slices) {
+        List<MethodDeclaration> purifiedTests = new ArrayList<>(assertions.size());
+        for (int a = 0; a < assertions.size(); a++) {
+            MethodDeclaration purifiedMethod = testMethod.clone();
+            purifiedMethod.setName(testMethod.getNameAsString() + "_" + (a + 1));
+            List<Statement> clonedStatements = new ArrayList<>(purifiedMethod.getBody().get().getStatements());
+            removeOtherAssertions(purifiedMethod, assertions.get(a));
+
+            // Also removes the statements after the assertion, they are never in its slice
+            int[] kept = slices.keptStatements[a];
+            for (int i = 0, k = 0; i < clonedStatements.size(); i++) {
+                if (k < kept.length && kept[k] == i) {
+                    k++;
+                } else {
+                    clonedStatements.get(i).remove();
+                }
+            }
+            purifiedTests.add(purifiedMethod);
+        }
+        return purifiedTests;
+    }
+
+    /**
+     * One test per group of dependent purified tests: the purified test itself, or a test merging the
+     * statements the purified tests of the group keep, in the order of the original test.
+     *
+     * @param purifiedTestsOfOriginalTest the purified tests, null for a test in a group of several whose
+     *                                    kept statements are those of originalTest unchanged (see TestSlicer)
+     * @param keptStatements per purified test, the top-level statements of originalTest it keeps
+     * @param dependentPurifiedTestGroups see findTestGroups
+     */
+    public static List<MethodDeclaration> clusterDependentPurifiedTests(List<MethodDeclaration> purifiedTestsOfOriginalTest, List<int[]> keptStatements,
+                                                                        List<List<Integer>> dependentPurifiedTestGroups, MethodDeclaration originalTest) {
         if(dependentPurifiedTestGroups.size() <= 1) {
             throw new RuntimeException("Error in separating independent assertion clusters, expected separable components > 1");
         }
 
         List<MethodDeclaration> clusteredTests = new ArrayList<>();
-
-        // Get original test lines to maintain ordering
-        List<String> originalTestLines = extractAllLines2(originalTest);
+        int originalStatementCount = topLevelStatements(originalTest).size();
 
         // Process each group of dependent tests
         int num = 0;
-        for (List<MethodDeclaration> group : dependentPurifiedTestGroups) {
+        for (List<Integer> group : dependentPurifiedTestGroups) {
             num++;
             // Skip empty groups
             if (group.isEmpty()) continue;
 
             if (group.size() == 1) {
-                clusteredTests.add(group.get(0).clone());
+                clusteredTests.add(purifiedTestsOfOriginalTest.get(group.get(0)));
                 continue;
             }
 
             // Create a new merged test for this group
             MethodDeclaration mergedTest = new MethodDeclaration();
-            mergedTest.setName(new SimpleName(group.get(0).getNameAsString() + "_testMerged_" + num));
+            mergedTest.setName(new SimpleName(originalTest.getNameAsString() + "_" + (group.get(0) + 1) + "_testMerged_" + num));
             mergedTest.setAnnotations(originalTest.getAnnotations());
             mergedTest.setModifiers(originalTest.getModifiers());
             mergedTest.setType(originalTest.getType());
             mergedTest.setThrownExceptions(originalTest.getThrownExceptions());
 
-            Set<String> uniqueLines = new LinkedHashSet<>(); // Use LinkedHashSet to maintain insertion order
-
-            // First pass: collect all unique lines and assertions
-            for (MethodDeclaration test : group) {
-                List<String> testLines = extractAllLines2(test);
-                uniqueLines.addAll(testLines);
+            // Each statement of the original test kept by a test of the group, at its index in the original test
+            Statement[] mergedStatements = new Statement[originalStatementCount];
+            for (int test : group) {
+                MethodDeclaration purifiedTest = purifiedTestsOfOriginalTest.get(test);
+                NodeList<Statement> statements = purifiedTest != null ? topLevelStatements(purifiedTest) : null;
+                int[] kept = keptStatements.get(test);
+                for (int k = 0; k < kept.length; k++) {
+                    // The last statement holds the test's assertion, the other tests of the group had it removed
+                    if (mergedStatements[kept[k]] == null || k == kept.length - 1) {
+                        mergedStatements[kept[k]] = statements != null ? statements.get(k) : topLevelStatements(originalTest).get(kept[k]);
+                    }
+                }
             }
 
-            // Sort unique lines based on their appearance in original test
-            List<String> sortedUniqueLines = uniqueLines.stream()
-                    .sorted((line1, line2) -> {
-                        int index1 = originalTestLines.indexOf(line1);
-                        int index2 = originalTestLines.indexOf(line2);
-                        return Integer.compare(index1, index2);
-                    })
-                    .collect(Collectors.toList());
-
-            // Combine sorted lines and assertions
-            List<String> mergedLines = new ArrayList<>();
-            mergedLines.addAll(sortedUniqueLines);
-
-            // Update the merged test's body
-            updateTestBody(mergedTest, mergedLines);
+            BlockStmt mergedBody = new BlockStmt();
+            for (Statement statement : mergedStatements) {
+                if (statement != null) {
+                    mergedBody.addStatement(statement.clone());
+                }
+            }
+            mergedTest.setBody(mergedBody);
             clusteredTests.add(mergedTest);
         }
 
         return clusteredTests;
     }
 
-    // Helper method to update the body of a test method
-    private static void updateTestBody(MethodDeclaration test, List<String> newLines) {
-        // Implementation depends on your AST manipulation library
-        // This should replace the existing body with the new lines
-        BlockStmt newBody = new BlockStmt();
-        for (String line : newLines) {
-            // Convert each line to a statement and add to the block
-            // The exact implementation will depend on your parsing library
-            try {
-                Statement stmt = parseStatement(line);
-                newBody.addStatement(stmt);
-            } catch (Exception e) {
-                System.out.println("Error parsing statement: " + line);
-            }
-
-        }
-        test.setBody(newBody);
-    }
-
-    // Helper method to parse a string into a statement
-    private static Statement parseStatement(String line) {
-        // Implementation depends on your parsing library
-        // This should convert a string into an AST Statement node
-        return StaticJavaParser.parseStatement(line);
-    }
-
     private static int countPotentialPutsInSimilarTestGroups(List<List<UnitTest>> similarTestGroups) {
         int count = 0;
         for (List<UnitTest> group : similarTestGroups) {
@@ -2637,6 +2853,9 @@ public class Untangle2Weave {
         int totalPotentialPuts;
         int totalTestsAfterP2;
         TestFileResult aggregatedResult;
+        // detection results of the files, in the order they were added; not kept by streaming runs that are not sharded
+        final List<TestFileResult> fileResults = new ArrayList<>();
+        boolean keepFileResults = true;
 
         public ResultCreateRefreshedTestFilesInSandbox(int totalNewSeparatedTestsCreated, int totalNewPUTsCreated, int totalPotentialPuts, int totalTestsAfterP2, TestFileResult aggregatedResult) {
             this.totalNewSeparatedTestsCreated = totalNewSeparatedTestsCreated;
@@ -2645,6 +2864,43 @@ public class Untangle2Weave {
             this.totalTestsAfterP2 = totalTestsAfterP2;
             this.aggregatedResult = aggregatedResult;
         }
+
+        ResultCreateRefreshedTestFilesInSandbox() {
+            this(0, 0, 0, 0, new TestFileResult());
+        }
+
+        void add(TestFileResult testClassResult, ResultRefactorTestFile fileResult) {
+            if (keepFileResults) {
+                fileResults.add(testClassResult);
+            }
+            if (fileResult.aggregated) {
+                aggregatedResult = aggregate(aggregatedResult, testClassResult);
+            }
+            totalNewSeparatedTestsCreated += fileResult.newSeparatedTests;
+            totalPotentialPuts += fileResult.potentialPuts;
+            totalNewPUTsCreated += fileResult.newPUTs;
+            totalTestsAfterP2 += fileResult.testsAfterP2;
+        }
+
+        /**
+         * Adds the totals of another part of the same repository, e.g. another shard.
+         */
+        void merge(ResultCreateRefreshedTestFilesInSandbox other) {
+            aggregatedResult = aggregate(aggregatedResult, other.aggregatedResult);
+            totalNewSeparatedTestsCreated += other.totalNewSeparatedTestsCreated;
+            totalPotentialPuts += other.totalPotentialPuts;
+            totalNewPUTsCreated += other.totalNewPUTsCreated;
+            totalTestsAfterP2 += other.totalTestsAfterP2;
+        }
+
+        ResultCreateRefreshedTestFilesInSandbox finish() {
+            // Calculate the overall percentage
+            if (aggregatedResult.totalConsideredTests > 0) {
+                aggregatedResult.pastaPercentage =
+                        (double) aggregatedResult.pastaCount / aggregatedResult.totalConsideredTests * 100;
+            }
+            return this;
+        }
     }
 
     public static int extractTestLogicLineCount(CompilationUnit cu, String testName) {
@@ -2840,13 +3096,13 @@ public class Untangle2Weave {
         return similarTests;
     }
 
-    public static void collectTestAnalyticsBeforePhaseI(TestFileResult testClassResult) throws FileNotFoundException {
+    public static void collectTestAnalyticsBeforePhaseI(AnalysisContext context, TestFileResult testClassResult) throws FileNotFoundException {
         String className = extractClassName(testClassResult.filePath);
         CompilationUnit cu = configureJavaParserAndGetCompilationUnit(testClassResult.filePath);
 
         for(String test : testClassResult.listPastaTests) {
             String analyticsMethodKey = className + "#" + test;
-            analyticsMap.put(
+            context.analyticsMap.put(
                     analyticsMethodKey, new TestAnalytics(
                         className,
                         test,
@@ -2861,27 +3117,27 @@ public class Untangle2Weave {
             if (testClassResult.listPastaTests.contains(method.getNameAsString())) {
                 String analyticsMethodKey = className + "#" + method.getNameAsString();
                 List<MethodCallExpr> assertions = extractAssertions(method);
-                analyticsMap.get(analyticsMethodKey).assertionCount = assertions.size();
+                context.analyticsMap.get(analyticsMethodKey).assertionCount = assertions.size();
             }
         }
     }
 
 
-    public static boolean collectTestAnalyticsAfterPhaseIAndReturnStop(TestFileResult testClassResult, ResultCreateNewClassFileWithSplittedTests result) throws FileNotFoundException {
+    public static boolean collectTestAnalyticsAfterPhaseIAndReturnStop(AnalysisContext context, TestFileResult testClassResult, ResultCreateNewClassFileWithSplittedTests result) throws FileNotFoundException {
         String className = extractClassName(testClassResult.filePath);
         String purifiedOutputFilePath = result.newClassFilePath;
         int totalNewSeparatedTestsCreated = result.newSeparatedTests;
-        CompilationUnit cu = configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath);
+        CompilationUnit cu = configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath, result.newClassSource);
 
         for(String test: testClassResult.listPastaTests) {
             String analyticsMethodKey = className + "#" + test;
-            analyticsMap.get(analyticsMethodKey).lineCountAfterP1 = extractTestLogicLineCountForSplittedTests(cu, test);
+            context.analyticsMap.get(analyticsMethodKey).lineCountAfterP1 = extractTestLogicLineCountForSplittedTests(cu, test);
             // if line count aren't equal stop its processing
-            if(analyticsMap.get(analyticsMethodKey).lineCountBefore != analyticsMap.get(analyticsMethodKey).lineCountAfterP1) {
+            if(context.analyticsMap.get(analyticsMethodKey).lineCountBefore != context.analyticsMap.get(analyticsMethodKey).lineCountAfterP1) {
                 // stop processing whole test class
                 for(String removeTest: testClassResult.listPastaTests) {
                     String analyticsMethodKey2 = className + "#" + removeTest;
-                    analyticsMap.get(analyticsMethodKey2).stopProcessing = true;
+                    context.analyticsMap.get(analyticsMethodKey2).stopProcessing = true;
                 }
                 return true;
             }
@@ -2889,7 +3145,7 @@ public class Untangle2Weave {
         return false;
     }
 
-    public static void collectTestAnalyticsBeforePhaseII(TestFileResult testClassResult, List<List<UnitTest>> similarTestGroups) {
+    public static void collectTestAnalyticsBeforePhaseII(AnalysisContext context, TestFileResult testClassResult, List<List<UnitTest>> similarTestGroups) {
         String className = extractClassName(testClassResult.filePath);
         List<String> putsOpportunities = extractPotentialPUTsOpportunity(similarTestGroups);
 
@@ -2897,111 +3153,139 @@ public class Untangle2Weave {
             String analyticsMethodKey = className + "#" + test;
             for(String splitTest: putsOpportunities) {
                 if (splitTest.startsWith(test + "_")) {
-                    analyticsMap.get(analyticsMethodKey).isRetrofittingOpportunity = true;
+                    context.analyticsMap.get(analyticsMethodKey).isRetrofittingOpportunity = true;
                     break;
                 }
             }
         }
     }
 
-    public static void collectTestAnalyticsAfterPhaseII(TestFileResult testClassResult, String putsFile, List<List<UnitTest>> similarTestGroups) throws FileNotFoundException {
+    public static void collectTestAnalyticsAfterPhaseII(AnalysisContext context, TestFileResult testClassResult, String putsFile, List<List<UnitTest>> similarTestGroups) throws FileNotFoundException {
+        collectTestAnalyticsAfterPhaseII(context, testClassResult, putsFile, null, similarTestGroups);
+    }
+
+    /**
+     * @param putsSource content of putsFile if it has not been written yet, otherwise null
+     */
+    static void collectTestAnalyticsAfterPhaseII(AnalysisContext context, TestFileResult testClassResult, String putsFile, String putsSource, List<List<UnitTest>> similarTestGroups) throws FileNotFoundException {
         String className = extractClassName(testClassResult.filePath);
-        CompilationUnit cu = configureJavaParserAndGetCompilationUnit(putsFile);
+        CompilationUnit cu = configureJavaParserAndGetCompilationUnit(putsFile, putsSource);
 
         for(String test: testClassResult.listPastaTests) {
             String analyticsMethodKey = className + "#" + test;
 
             if(cu.findAll(MethodDeclaration.class).stream().anyMatch(method -> method.getNameAsString().startsWith(test + "_") && method.getAnnotationByName("ParameterizedTest").isPresent())) {
-                analyticsMap.get(analyticsMethodKey).becameRetrofittedTest = true;
-                analyticsMap.get(analyticsMethodKey).testsRefactoredTogether = extractSimilarTestsForGivenRetrofittedTest(similarTestGroups, test + "_");
+                context.analyticsMap.get(analyticsMethodKey).becameRetrofittedTest = true;
+                context.analyticsMap.get(analyticsMethodKey).testsRefactoredTogether = extractSimilarTestsForGivenRetrofittedTest(similarTestGroups, test + "_");
             }
             // update this to actually check -> only execute if run successful, so fine
-            if(analyticsMap.get(analyticsMethodKey).isRetrofittingOpportunity)
-                analyticsMap.get(analyticsMethodKey).retrofittingSuccessful = true;
-            analyticsMap.get(analyticsMethodKey).lineCountAfterP2 = extractTestLogicLineCountForSplittedTests(cu, test);
-            analyticsMap.get(analyticsMethodKey).assertionCountAfterP2 = extractAllAssertionsForOldTestName(cu, test);
+            if(context.analyticsMap.get(analyticsMethodKey).isRetrofittingOpportunity)
+                context.analyticsMap.get(analyticsMethodKey).retrofittingSuccessful = true;
+            context.analyticsMap.get(analyticsMethodKey).lineCountAfterP2 = extractTestLogicLineCountForSplittedTests(cu, test);
+            context.analyticsMap.get(analyticsMethodKey).assertionCountAfterP2 = extractAllAssertionsForOldTestName(cu, test);
         }
     }
 
-    public static ResultCreateRefreshedTestFilesInSandbox createRefreshedTestFilesInSandbox(List<TestFileResult> results) throws IOException {
-        int totalNewSeparatedTestsCreated = 0;
-        int totalNewPUTsCreated = 0;
-        int totalPotentialPuts = 0;
-        int totalTestsAfterP2 = 0;
-        TestFileResult aggregated = new TestFileResult();
+    public static ResultCreateRefreshedTestFilesInSandbox createRefreshedTestFilesInSandbox(AnalysisContext context, List<TestFileResult> results) throws IOException {
+        ResultCreateRefreshedTestFilesInSandbox result = new ResultCreateRefreshedTestFilesInSandbox();
         for (TestFileResult testClassResult : results) {
-            if(testClassResult.pastaCount == 0) {
-                aggregated = aggregate(aggregated, testClassResult);
-                continue;
-            }
+            result.add(testClassResult, refactorTestFile(context, testClassResult, Untangle2Weave::writeSourceFile));
+        }
+//        System.out.println("Total potential PUTs: " + totalPotentialPuts);
+//        System.out.println("Total new separated tests created: " + totalNewSeparatedTestsCreated);
+        return result.finish();
+    }
 
-            collectTestAnalyticsBeforePhaseI(testClassResult);
+    static class ResultRefactorTestFile {
+        boolean aggregated;
+        int newSeparatedTests;
+        int potentialPuts;
+        int newPUTs;
+        int testsAfterP2;
+    }
 
-            // PHASE I
-            // Purified file has separated tests of only the pasta tests from the original file.
-            ResultCreateNewClassFileWithSplittedTests resultx = createNewClassFileWithSplittedTests(testClassResult);
-            String purifiedOutputFilePath = resultx.newClassFilePath;
-            boolean stop = collectTestAnalyticsAfterPhaseIAndReturnStop(testClassResult, resultx);
+    /**
+     * Phase I and Phase II for one test file. The new files are handed to the writer; later steps
+     * parse them from memory, so they do not have to be written before this returns.
+     */
+    static ResultRefactorTestFile refactorTestFile(AnalysisContext context, TestFileResult testClassResult, SourceWriter writer) throws IOException {
+        ResultRefactorTestFile result = new ResultRefactorTestFile();
+        if(testClassResult.pastaCount == 0) {
+            result.aggregated = true;
+            return result;
+        }
 
-            if(stop) {
-                System.out.println("Stopping processing for file: " + testClassResult.filePath);
-                // ideally also delete the purified file
-                continue;
-            }
+        collectTestAnalyticsBeforePhaseI(context, testClassResult);
 
-            aggregated = aggregate(aggregated, testClassResult);
-            totalNewSeparatedTestsCreated += resultx.newSeparatedTests;
-            // PHASE II
-            // Replace all the type 2 clones with their respective PUT
-            CompilationUnit cu = configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath);
-            List<String> listTestMethods = extractTestMethodListFromCU(cu); // all purified tests
-            HashMap<String, NodeList<Node>> statementNodesListMap = extractASTNodesForTestMethods(cu, listTestMethods);
-            // type 2 clone detection
-            List<List<UnitTest>> similarTestGroups = groupSimilarTests(listTestMethods, statementNodesListMap);
-            int potentialPUTs = countPotentialPutsInSimilarTestGroups(similarTestGroups);
-            totalPotentialPuts = totalPotentialPuts + potentialPUTs;
-            System.out.println("Potential PUTs: " + potentialPUTs);
-            if(potentialPUTs == 0) {
-                System.out.println("No potential PUTs for file: " + purifiedOutputFilePath);
-                CompilationUnit cuCut = configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath);
-                // check logic ? ? ?
-                totalTestsAfterP2 += countTestMethods(cuCut);
-                continue;
-            }
-            collectTestAnalyticsBeforePhaseII(testClassResult, similarTestGroups);
-            List<MethodDeclaration> newPUTs = new ArrayList<>();
-            try {
-                newPUTs = retrofitSimilarTestsTogether(similarTestGroups, cu);
-            } catch (Exception e) {
-                System.out.println("Error Creating PUTs");
-            }
+        // PHASE I
+        // Purified file has separated tests of only the pasta tests from the original file.
+        ResultCreateNewClassFileWithSplittedTests resultx = createNewClassFileWithSplittedTests(testClassResult, writer);
+        String purifiedOutputFilePath = resultx.newClassFilePath;
+        boolean stop = collectTestAnalyticsAfterPhaseIAndReturnStop(context, testClassResult, resultx);
 
-            if(newPUTs.size() == 0) {
-                System.out.println("ERROR?: Puts should be created: " + purifiedOutputFilePath);
-                // todo update analytics map to have false in retrofitting successful for all tests of class
-                // todo fix hadoop failure due to java parser, skip such unparsable classes
-                //      => is the unparsable code something I created?
-            }
-            else {
-                System.out.println(newPUTs.size()/2 + " new PUTs created for file: " + purifiedOutputFilePath);
-                totalNewPUTsCreated = totalNewPUTsCreated + newPUTs.size()/2;
-                String putsFile = createParameterizedTestFile(purifiedOutputFilePath, newPUTs, extractTestMethodsToExclude(similarTestGroups));
-                collectTestAnalyticsAfterPhaseII(testClassResult, putsFile, similarTestGroups);
+        if(stop) {
+            System.out.println("Stopping processing for file: " + testClassResult.filePath);
+            // ideally also delete the purified file
+            return result;
+        }
 
-                CompilationUnit cuPut = configureJavaParserAndGetCompilationUnit(putsFile);
-                // check logic ? ? ?
-                totalTestsAfterP2 += countTestMethods(cuPut);
-            }
+        result.aggregated = true;
+        result.newSeparatedTests = resultx.newSeparatedTests;
+        // PHASE II
+        // Replace all the type 2 clones with their respective PUT
+        CompilationUnit cu = configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath, resultx.newClassSource);
+        List<String> listTestMethods = extractTestMethodListFromCU(cu); // all purified tests
+        HashMap<String, NodeList<Node>> statementNodesListMap = extractASTNodesForTestMethods(cu, listTestMethods);
+        // type 2 clone detection
+        List<List<UnitTest>> similarTestGroups;
+        TimeBudget.Scope fileBudget = TimeBudget.forFile(purifiedOutputFilePath);
+        try {
+            similarTestGroups = groupSimilarTests(listTestMethods, statementNodesListMap);
+        } catch (TimeBudget.Exceeded e) {
+            // The Phase I result stays, the pasta tests of the file are counted as timed out
+            System.out.println(e.getMessage() + ", no PUTs for file: " + purifiedOutputFilePath);
+            testClassResult.filteredTestsMap.merge(TimeBudget.FILTER_KEY, testClassResult.listPastaTests.size(), Integer::sum);
+            result.testsAfterP2 = countTestMethods(configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath, resultx.newClassSource));
+            return result;
+        } finally {
+            fileBudget.close();
+        }
+        int potentialPUTs = countPotentialPutsInSimilarTestGroups(similarTestGroups);
+        result.potentialPuts = potentialPUTs;
+        System.out.println("Potential PUTs: " + potentialPUTs);
+        if(potentialPUTs == 0) {
+            System.out.println("No potential PUTs for file: " + purifiedOutputFilePath);
+            CompilationUnit cuCut = configureJavaParserAndGetCompilationUnit(purifiedOutputFilePath, resultx.newClassSource);
+            // check logic ? ? ?
+            result.testsAfterP2 = countTestMethods(cuCut);
+            return result;
+        }
+        collectTestAnalyticsBeforePhaseII(context, testClassResult, similarTestGroups);
+        List<MethodDeclaration> newPUTs = new ArrayList<>();
+        try {
+            newPUTs = retrofitSimilarTestsTogether(similarTestGroups, cu, Paths.get(purifiedOutputFilePath));
+        } catch (Exception e) {
+            System.out.println("Error Creating PUTs");
         }
-//        System.out.println("Total potential PUTs: " + totalPotentialPuts);
-//        System.out.println("Total new separated tests created: " + totalNewSeparatedTestsCreated);
 
-        // Calculate the overall percentage
-        if (aggregated.totalConsideredTests > 0) {
-            aggregated.pastaPercentage =
-                    (double) aggregated.pastaCount / aggregated.totalConsideredTests * 100;
+        if(newPUTs.size() == 0) {
+            System.out.println("ERROR?: Puts should be created: " + purifiedOutputFilePath);
+            // todo update analytics map to have false in retrofitting successful for all tests of class
+            // todo fix hadoop failure due to java parser, skip such unparsable classes
+            //      => is the unparsable code something I created?
         }
-        return new ResultCreateRefreshedTestFilesInSandbox(totalNewSeparatedTestsCreated, totalNewPUTsCreated, totalPotentialPuts, totalTestsAfterP2, aggregated);
+        else {
+            System.out.println(newPUTs.size()/2 + " new PUTs created for file: " + purifiedOutputFilePath);
+            result.newPUTs = newPUTs.size()/2;
+            ResultCreateParameterizedTestFile puts = createParameterizedTestFile(purifiedOutputFilePath, resultx.newClassSource,
+                    newPUTs, extractTestMethodsToExclude(similarTestGroups), writer);
+            collectTestAnalyticsAfterPhaseII(context, testClassResult, puts.newFilePath, puts.newFileSource, similarTestGroups);
+
+            CompilationUnit cuPut = configureJavaParserAndGetCompilationUnit(puts.newFilePath, puts.newFileSource);
+            // check logic ? ? ?
+            result.testsAfterP2 = countTestMethods(cuPut);
+        }
+        return result;
     }
 
     public static int countTestMethods(CompilationUnit cu) {
@@ -3032,6 +3316,7 @@ public class Untangle2Weave {
         aggregated.totalConsideredTests += result.totalConsideredTests;
         aggregated.pastaCount += result.pastaCount;
         aggregated.totalLocInObservedTests += result.totalLocInObservedTests;
+        aggregated.prescreenedTests += result.prescreenedTests;
         // Merge the maps
         for (Map.Entry<String, Integer> entry : result.filteredTestsMap.entrySet()) {
             aggregated.filteredTestsMap.merge(entry.getKey(), entry.getValue(), Integer::sum);
@@ -3062,34 +3347,24 @@ public class Untangle2Weave {
             allReportsBuilder.append("# Assertion Pasta Fix Reports\n\n");
 
             // Track overall statistics
-            int totalTestSplitted = 0;
-            int totalPotentialPuts = 0;
-            int totalNewPutsCreated = 0;
+            AtomicInteger totalTestSplitted = new AtomicInteger();
+            AtomicInteger totalPotentialPuts = new AtomicInteger();
+            AtomicInteger totalNewPutsCreated = new AtomicInteger();
 
-            // Process each path
-            for (String path : paths) {
-                String trimmedPath = path.trim();
+            List<String> trimmedPaths = Arrays.stream(paths).map(String::trim).collect(Collectors.toList());
+
+            // Repositories are fixed concurrently; their output and reports are handled here in input order
+            RepositoryRunner.forEachRepository(trimmedPaths, Untangle2Weave::fixAssertionPastaInRepo, run -> {
+                String trimmedPath = run.repositoryPath;
                 System.out.println("Processing repository: " + trimmedPath);
 
                 // Create a StringBuilder for the current report
                 StringBuilder reportBuilder = new StringBuilder();
                 reportBuilder.append("## Repository: ").append(trimmedPath).append("\n\n");
 
-                try {
-                    // Redirect System.out temporarily to capture the output
-                    PrintStream originalOut = System.out;
-                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    PrintStream capturedOut = new PrintStream(outputStream);
-                    System.setOut(capturedOut);
-
-                    // Call the original method
-                    fixAssertionPastaInRepo(trimmedPath);
-
-                    // Restore the original System.out
-                    System.setOut(originalOut);
-
+                if (run.error == null) {
                     // Get the captured output
-                    String capturedOutput = outputStream.toString();
+                    String capturedOutput = run.output;
                     System.out.println(capturedOutput); // Print to console as well
 
                     // Extract statistics from the captured output
@@ -3102,12 +3377,12 @@ public class Untangle2Weave {
 
                         if (line.startsWith("Total potential PUTs:")) {
                             potentialPuts = Integer.parseInt(line.substring("Total potential PUTs:".length()).trim());
-                            totalPotentialPuts += potentialPuts;
+                            totalPotentialPuts.addAndGet(potentialPuts);
                         } else if (line.startsWith("Total new PUTs created:")) {
                             newPutsCreated = Integer.parseInt(line.substring("Total new PUTs created:".length()).trim());
-                            totalNewPutsCreated += newPutsCreated;
+                            totalNewPutsCreated.addAndGet(newPutsCreated);
                         } else if (line.startsWith("Total new separated tests created:")) {
-                            totalTestSplitted += Integer.parseInt(line.substring("Total new separated tests created:".length()).trim());
+                            totalTestSplitted.addAndGet(Integer.parseInt(line.substring("Total new separated tests created:".length()).trim()));
                         }
                     }
 
@@ -3118,7 +3393,9 @@ public class Untangle2Weave {
                     reportBuilder.append("- PUT Conversion Rate: ")
                             .append(String.format("%.2f%%", putConversionPercentage))
                             .append("\n\n");
-                } catch (Exception e) {
+                } else {
+                    Exception e = run.error;
+                    System.out.print(run.output);
                     reportBuilder.append("### Error\n");
                     reportBuilder.append("- Error processing repository: ").append(e.getMessage()).append("\n\n");
                     System.err.println("Error processing repository " + trimmedPath + ": " + e.getMessage());
@@ -3130,22 +3407,24 @@ public class Untangle2Weave {
                 String reportFileName = outputDir.getPath() + File.separator + "assertion_pasta_report_" + safeFileName + ".md";
                 try (FileWriter writer = new FileWriter(reportFileName)) {
                     writer.write(reportBuilder.toString());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
 
                 System.out.println("Report generated: " + reportFileName);
 
                 // Add this report to the overall report
                 allReportsBuilder.append(reportBuilder);
-            }
+            });
 
             // Calculate overall PUT conversion percentage
-            double overallPutConversionPercentage = totalPotentialPuts > 0 ?
-                    ((double) totalNewPutsCreated / totalPotentialPuts) * 100 : 0;
+            double overallPutConversionPercentage = totalPotentialPuts.get() > 0 ?
+                    ((double) totalNewPutsCreated.get() / totalPotentialPuts.get()) * 100 : 0;
 
             allReportsBuilder.append("## Summary\n\n");
-            allReportsBuilder.append("- Total tests splitted across all repositories: ").append(totalTestSplitted).append("\n");
-            allReportsBuilder.append("- Total potential PUTs across all repositories: ").append(totalPotentialPuts).append("\n");
-            allReportsBuilder.append("- Total new PUTs created across all repositories: ").append(totalNewPutsCreated).append("\n");
+            allReportsBuilder.append("- Total tests splitted across all repositories: ").append(totalTestSplitted.get()).append("\n");
+            allReportsBuilder.append("- Total potential PUTs across all repositories: ").append(totalPotentialPuts.get()).append("\n");
+            allReportsBuilder.append("- Total new PUTs created across all repositories: ").append(totalNewPutsCreated.get()).append("\n");
             allReportsBuilder.append("- Overall PUT Conversion Rate: ")
                     .append(String.format("%.2f%%", overallPutConversionPercentage))
                     .append("\n");
@@ -3159,13 +3438,98 @@ public class Untangle2Weave {
             System.out.println("Combined report generated: " + allReportsFileName);
         }
 
-    public static ResultCreateRefreshedTestFilesInSandbox fixAssertionPastaInRepo(String pathToJavaRepository) throws IOException {
-        List<TestFileResult> results = getAssertionPastaResultsInRepo(pathToJavaRepository);
-        // for each results in a file
-        // create file with only pastas and todo: add all of top code
-        ResultCreateRefreshedTestFilesInSandbox result = createRefreshedTestFilesInSandbox(results);
+    public static ResultCreateRefreshedTestFilesInSandbox fixAssertionPastaInRepo(AnalysisContext context, String pathToJavaRepository) throws IOException {
+        // Detection and both phases run as a pipeline, files are refactored while others are still being discovered
+        Path repository = Paths.get(pathToJavaRepository);
+        try (Stream<Path> testFiles = TestFileDiscovery.configured(repository).stream(testFileFilter(context, repository))) {
+            return printFixTotals(new FixPipeline(context).run(testFiles.iterator(), null));
+        }
+    }
+
+    public static ResultCreateRefreshedTestFilesInSandbox fixAssertionPastaInDiff(AnalysisContext context, String pathToJavaRepository, String baseRef, boolean onlyChangedMethods) throws IOException {
+        Map<Path, Set<String>> onlyMethods = new HashMap<>();
+        List<Path> testFiles = getChangedTestFiles(pathToJavaRepository, baseRef, onlyChangedMethods ? onlyMethods : null);
+        return printFixTotals(new FixPipeline(context).run(testFiles.iterator(), onlyMethods));
+    }
+
+    /**
+     * Combines the partial results written by the shards of a detect, allRepos, fixInRepo or
+     * fixInAllRepoWithXLSXReport run into the Markdown or XLSX reports of an unsharded run.
+     */
+    public static void mergePartialResultsAndGenerateReports(String partialResults) throws IOException {
+        List<PartialResult> partials = PartialResult.readAll(partialResults);
+        if (partials.isEmpty()) {
+            throw new IllegalArgumentException("No partial results found in " + partialResults);
+        }
+        String operation = partials.get(0).operation;
+        TreeMap<Integer, List<PartialResult>> byRepository = new TreeMap<>();
+        for (PartialResult partial : partials) {
+            if (!partial.operation.equals(operation)) {
+                throw new IllegalStateException("Cannot merge partial results of " + operation + " and " + partial.operation + " runs");
+            }
+            byRepository.computeIfAbsent(partial.repositoryIndex, index -> new ArrayList<>()).add(partial);
+        }
+
+        AnalysisContext allReposContext = new AnalysisContext();
+        for (List<PartialResult> shards : byRepository.values()) {
+            shards.sort(Comparator.comparingInt(partial -> partial.shardIndex));
+            PartialResult first = shards.get(0);
+            for (int i = 0; i < shards.size(); i++) {
+                PartialResult shard = shards.get(i);
+                if (shard.shardCount != first.shardCount || shard.shardIndex != i + 1) {
+                    throw new IllegalStateException("Incomplete or inconsistent shards for repository " + first.repositoryPath
+                            + ": expected shards 1.." + first.shardCount + " exactly once");
+                }
+            }
+            if (shards.size() != first.shardCount) {
+                throw new IllegalStateException("Missing shards for repository " + first.repositoryPath + ": found "
+                        + shards.size() + " of " + first.shardCount);
+            }
+
+            // Back into the order of the repository walk, as an unsharded run would see them
+            List<PartialResult.FileEntry> files = shards.stream()
+                    .flatMap(shard -> shard.files.stream())
+                    .sorted(Comparator.comparingInt(entry -> entry.discoveryIndex))
+                    .collect(Collectors.toList());
+            AnalysisContext context = new AnalysisContext();
+            if (first.isFix()) {
+                ResultCreateRefreshedTestFilesInSandbox result = new ResultCreateRefreshedTestFilesInSandbox();
+                for (PartialResult shard : shards) {
+                    result.merge(shard.fixResult);
+                    shard.separableComponentFrequency.forEach((components, frequency) ->
+                            context.separableComponentFrequency.merge(components, frequency, Integer::sum));
+                }
+                // Analytics are added in the order collectTestAnalyticsBeforePhaseI added them, so the
+                // sheet lists them like an unsharded run does
+                for (PartialResult.FileEntry entry : files) {
+                    String className = extractClassName(entry.result.filePath);
+                    for (String test : entry.result.listPastaTests) {
+                        TestAnalytics analytics = entry.partial.analytics.get(className + "#" + test);
+                        if (entry.result.pastaCount > 0 && analytics != null) {
+                            context.analyticsMap.put(className + "#" + test, analytics);
+                        }
+                    }
+                }
+                printFixTotals(result.finish());
+                exportAnalyticsToXLSX(context, ANALYTICS_XLSX_PATH, result, extractRepoNameFromPath(first.repositoryPath));
+            } else {
+                List<TestFileResult> results = files.stream().map(entry -> entry.result).collect(Collectors.toList());
+                generateReportAssertionPasta(context, results, first.repositoryPath);
+            }
+            allReposContext.mergeFrom(context);
+        }
+
+        if (operation.equals("allRepos")) {
+            for (Map.Entry<Integer, Integer> entry : allReposContext.separableComponentFrequency.entrySet()) {
+                System.out.println("Key: " + entry.getKey() + ", Value: " + entry.getValue());
+            }
+        }
+    }
+
+    private static ResultCreateRefreshedTestFilesInSandbox printFixTotals(ResultCreateRefreshedTestFilesInSandbox result) {
         System.out.println("Total tests: " + result.aggregatedResult.totalTests);
         System.out.println("Total considered tests: " + result.aggregatedResult.totalConsideredTests);
+        System.out.println("Total considered tests with at most one assertion (not sliced): " + result.aggregatedResult.prescreenedTests);
         System.out.println("Total pasta tests: " + result.aggregatedResult.pastaCount);
         System.out.println("Total pasta percentage: " + result.aggregatedResult.pastaPercentage);
         System.out.println("Total new separated tests created after P1: " + result.totalNewSeparatedTestsCreated);
@@ -3175,36 +3539,41 @@ public class Untangle2Weave {
         return result;
     }
 
-    public static void detectAssertionPastaAndGenerateReport(String pathToJavaRepository) throws IOException {
+    public static void detectAssertionPastaAndGenerateReport(AnalysisContext context, String pathToJavaRepository) throws IOException {
         // locates and read all the test files in the path folder
         // detects assertion pasta in each test file : use identifyAssertionPastas(inputFile);
         // generates a report file which has a table and results. 4 columns: Test File Name, Total Tests, Assertion Pasta Count, Assertion Pasta Percentage
-        List<TestFileResult> results = getAssertionPastaResultsInRepo(pathToJavaRepository);
-        generateReportAssertionPasta(results, pathToJavaRepository);
+        List<TestFileResult> results = getAssertionPastaResultsInRepo(context, pathToJavaRepository);
+        generateReportAssertionPasta(context, results, pathToJavaRepository);
+    }
+
+    public static void detectAssertionPastaInDiffAndGenerateReport(AnalysisContext context, String pathToJavaRepository, String baseRef, boolean onlyChangedMethods) throws IOException {
+        List<TestFileResult> results = getAssertionPastaResultsInDiff(pathToJavaRepository, baseRef, onlyChangedMethods);
+        generateReportAssertionPasta(context, results, pathToJavaRepository);
     }
 
-    public static void detectSimilarTestsInRepoAndGenerateReport(String pathToJavaRepository) throws IOException {
+    public static void detectSimilarTestsInRepoAndGenerateReport(AnalysisContext context, String pathToJavaRepository) throws IOException {
         List<TestFileResult> results = new ArrayList<>();
         AtomicInteger count = new AtomicInteger();
 
         // Find all Java test files in the repository
-        Files.walk(Paths.get(pathToJavaRepository))
-                .filter(Files::isRegularFile)
-                .filter(path -> isTestFile(path.toString()))
-                .forEach(path -> {
-                    try {
-                        count.getAndIncrement();
-                        System.out.println("Processing Class No: " + count);
-                        System.out.println(path);
-                        detectSimilarTestsInFile(path.toString());
-                    } catch (Exception e) {
-                        System.err.println("Error processing file: " + path);
-                        e.printStackTrace();
-                    }
-                });
+        try (Stream<Path> testFiles = TestFileDiscovery.configured(Paths.get(pathToJavaRepository))
+                .stream(path -> isTestFile(path.toString()))) {
+            testFiles.forEach(path -> {
+                try {
+                    count.getAndIncrement();
+                    System.out.println("Processing Class No: " + count);
+                    System.out.println(path);
+                    detectSimilarTestsInFile(context, path.toString());
+                } catch (Exception e) {
+                    System.err.println("Error processing file: " + path);
+                    e.printStackTrace();
+                }
+            });
+        }
 
     }
-    public static List<List<UnitTest>> detectSimilarTestsInFile(String inputFile) throws FileNotFoundException {
+    public static List<List<UnitTest>> detectSimilarTestsInFile(AnalysisContext context, String inputFile) throws FileNotFoundException {
         // todo don't include methods which aren't Tests (no @Test)
         CompilationUnit cu = configureJavaParserAndGetCompilationUnit(inputFile);
         List<String> listTestMethods = extractTestMethodListFromCU(cu);
@@ -3213,12 +3582,12 @@ public class Untangle2Weave {
         System.out.println("Confirming Total tests: " + listTestMethods.size());
         int redundantTests = listTestMethods.size() - similarTestGroups.size();
         System.out.println("Redundant Tests: " + redundantTests);
-        TotalRedundantTests = TotalRedundantTests + redundantTests;
+        context.totalRedundantTests = context.totalRedundantTests + redundantTests;
         System.out.println("Total similar test groups: " + similarTestGroups.size());
         for (List<UnitTest> group : similarTestGroups) {
             System.out.println("Group Size: " + group.size());
             if (group.size() > 1) {
-                TotalNewPuts = TotalNewPuts + 1;
+                context.totalNewPuts = context.totalNewPuts + 1;
             }
             for (UnitTest test : group) {
                 System.out.println(test.Name);
@@ -3230,7 +3599,7 @@ public class Untangle2Weave {
     }
     public static String filterTestMethod(String testClassPath, String testMethodName) throws IOException {
         // Parse the provided Java test class
-        CompilationUnit compilationUnit = StaticJavaParser.parse(new File(testClassPath));
+        CompilationUnit compilationUnit = JavaParsers.detecting().parse(new File(testClassPath));
 
         // Extract the test class
         ClassOrInterfaceDeclaration testClass = compilationUnit
@@ -3285,7 +3654,7 @@ public class Untangle2Weave {
         return excludedTests;
     }
 
-    public static void exportAnalyticsToCSV(String filePath, ResultCreateRefreshedTestFilesInSandbox result) {
+    public static void exportAnalyticsToCSV(AnalysisContext context, String filePath, ResultCreateRefreshedTestFilesInSandbox result) {
         try {
             // Ensure directory exists
             File directory = new File(filePath.substring(0, filePath.lastIndexOf('/')));
@@ -3304,7 +3673,7 @@ public class Untangle2Weave {
             int entriesCount = 0;
 
             // Write data rows
-            for (Map.Entry<String, TestAnalytics> entry : analyticsMap.entrySet()) {
+            for (Map.Entry<String, TestAnalytics> entry : context.analyticsEntries()) {
                 TestAnalytics analytics = entry.getValue();
 
                 if(analytics.stopProcessing) {
@@ -3378,7 +3747,7 @@ public class Untangle2Weave {
         }
     }
 
-    public static void exportAnalyticsToCSVOld(String filePath) {
+    public static void exportAnalyticsToCSVOld(AnalysisContext context, String filePath) {
         try {
             // Ensure directory exists
             File directory = new File(filePath.substring(0, filePath.lastIndexOf('/')));
@@ -3395,7 +3764,7 @@ public class Untangle2Weave {
             csvWriter.append("BecamePUT,#LocAfterP2, #AssertionAfterP2, TestsPUTTogether\n");
 
             // Write data rows
-            for (Map.Entry<String, TestAnalytics> entry : analyticsMap.entrySet()) {
+            for (Map.Entry<String, TestAnalytics> entry : context.analyticsEntries()) {
                 TestAnalytics analytics = entry.getValue();
 
                 csvWriter.append(analytics.testClassName).append(",");
@@ -3528,9 +3897,14 @@ public class Untangle2Weave {
         // Sort the map by key
         Map<String, Integer> sortedMap = new TreeMap<>(result.aggregatedResult.filteredTestsMap);
 
-        // Write values in columns 11 onwards (index = 11)
+        // Write values in columns 11 onwards (index = 11), labelled with the filter key
         int colIdx = 11;
+        Row headerRow = reportSheet.getRow(0);
         for (Map.Entry<String, Integer> entry : sortedMap.entrySet()) {
+            Cell headerCell = headerRow.getCell(colIdx);
+            if (headerCell == null) {
+                headerRow.createCell(colIdx).setCellValue(entry.getKey());
+            }
             dataRow.createCell(colIdx++).setCellValue(entry.getValue());
         }
         // Auto-size columns
@@ -3539,7 +3913,7 @@ public class Untangle2Weave {
         }
     }
 
-    public static void exportAnalyticsToXLSX(String filePath, ResultCreateRefreshedTestFilesInSandbox result, String sheetName) {
+    public static void exportAnalyticsToXLSX(AnalysisContext context, String filePath, ResultCreateRefreshedTestFilesInSandbox result, String sheetName) {
         try {
             // Create or load the workbook
             Workbook workbook;
@@ -3568,6 +3942,22 @@ public class Untangle2Weave {
             }
             sheet = workbook.createSheet(sheetName);
 
+            // calculate average value sets per PUT
+            double averageValueSetsPerPUT = averageValueSetsPerPUT(context, result);
+
+            // In streaming runs the rows go straight to disk. The Report sheet refers to the rows below the
+            // data, so it is updated first, while the workbook can still be modified
+            boolean streaming = AnalysisContext.streaming();
+            SXSSFWorkbook streamingWorkbook = null;
+            if (streaming) {
+                updateReportSheet(workbook, sheetName, result, countExportedAnalytics(context), averageValueSetsPerPUT);
+                streamingWorkbook = new SXSSFWorkbook((XSSFWorkbook) workbook, 100);
+                workbook = streamingWorkbook;
+                SXSSFSheet streamingSheet = streamingWorkbook.getSheet(sheetName);
+                streamingSheet.trackAllColumnsForAutoSizing();
+                sheet = streamingSheet;
+            }
+
             // Create cell style for headers
             CellStyle headerStyle = workbook.createCellStyle();
             Font headerFont = workbook.createFont();
@@ -3593,7 +3983,7 @@ public class Untangle2Weave {
             int entriesCount = 0;
 
             // Write data rows
-            for (Map.Entry<String, TestAnalytics> entry : analyticsMap.entrySet()) {
+            for (Map.Entry<String, TestAnalytics> entry : context.analyticsEntries()) {
                 TestAnalytics analytics = entry.getValue();
 
                 if (analytics.stopProcessing) {
@@ -3630,19 +4020,6 @@ public class Untangle2Weave {
             titleCell.setCellValue("Summary Statistics");
             titleCell.setCellStyle(headerStyle);
 
-            // calculate average value sets per PUT
-            double averageValueSetsPerPUT = 0;
-            int totalValueSets = 0;
-            for(TestAnalytics analytics : analyticsMap.values()) {
-                if (analytics.testsRefactoredTogether != null && analytics.testsRefactoredTogether.size() > 0) {
-                    totalValueSets = totalValueSets + analytics.testsRefactoredTogether.size();
-                }
-            }
-            averageValueSetsPerPUT = totalValueSets / (double) result.totalNewPUTsCreated;
-            if(result.totalNewPUTsCreated == 0) {
-                averageValueSetsPerPUT = 0; // Avoid division by zero
-            }
-
             // Add summary data rows
             addSummaryRow(sheet, rowIdx++, "Total considered tests", result.aggregatedResult.totalConsideredTests);
             addSummaryRow(sheet, rowIdx++, "Total pasta tests", result.aggregatedResult.pastaCount);
@@ -3688,12 +4065,17 @@ public class Untangle2Weave {
 //                addSummaryRow(sheet, rowIdx++, entry.getKey(), entry.getValue());
 //            }
 
-            updateReportSheet(workbook, sheetName, result, entriesCount, averageValueSetsPerPUT);
+            if (!streaming) {
+                updateReportSheet(workbook, sheetName, result, entriesCount, averageValueSetsPerPUT);
+            }
 
             // Write the workbook to file
             FileOutputStream fileOut = new FileOutputStream(filePath);
             workbook.write(fileOut);
             fileOut.close();
+            if (streamingWorkbook != null) {
+                streamingWorkbook.dispose();
+            }
             workbook.close();
 
             System.out.println("Sheet '" + sheetName + "' created/updated successfully in: " + filePath);
@@ -3704,6 +4086,32 @@ public class Untangle2Weave {
         }
     }
 
+    private static double averageValueSetsPerPUT(AnalysisContext context, ResultCreateRefreshedTestFilesInSandbox result) {
+        if (result.totalNewPUTsCreated == 0) {
+            return 0; // Avoid division by zero
+        }
+        int totalValueSets = 0;
+        for (Map.Entry<String, TestAnalytics> entry : context.analyticsEntries()) {
+            TestAnalytics analytics = entry.getValue();
+            if (analytics.testsRefactoredTogether != null && analytics.testsRefactoredTogether.size() > 0) {
+                totalValueSets = totalValueSets + analytics.testsRefactoredTogether.size();
+            }
+        }
+        return totalValueSets / (double) result.totalNewPUTsCreated;
+    }
+
+    // The number of data rows exportAnalyticsToXLSX writes
+    private static int countExportedAnalytics(AnalysisContext context) {
+        int entriesCount = 0;
+        for (Map.Entry<String, TestAnalytics> entry : context.analyticsEntries()) {
+            TestAnalytics analytics = entry.getValue();
+            if (!analytics.stopProcessing && analytics.lineCountBefore == analytics.lineCountAfterP1) {
+                entriesCount++;
+            }
+        }
+        return entriesCount;
+    }
+
     // Helper method to add summary rows
     private static void addSummaryRow(Sheet sheet, int rowIndex, String label, Object value) {
         Row row = sheet.createRow(rowIndex);
@@ -3727,47 +4135,120 @@ public class Untangle2Weave {
         }
         String inputFile = args[0];
         String operation = args[1];
+        // With -Du2w.shard=i/n, repository modes write partial results instead of reports, see the merge operation
+        Shard shard = Shard.configured();
         if(operation.equals("detect")) {
-            detectAssertionPastaAndGenerateReport(inputFile);
-        } else if (operation.equals("allRepos")) {
-            String[] inputFiles = inputFile.split(","); // Split the comma-separated paths
-            for (String file : inputFiles) {
-                detectAssertionPastaAndGenerateReport(file.trim()); // Trim spaces to avoid errors
+            AnalysisContext context = new AnalysisContext();
+            if (shard == null) {
+                detectAssertionPastaAndGenerateReport(context, inputFile);
+            } else {
+                PartialResult.ofDetection(operation, 0, inputFile, shard, context, getAssertionPastaResultsInRepo(context, inputFile)).write();
             }
+        } else if (operation.equals("allRepos")) {
+            List<String> inputFiles = Arrays.stream(inputFile.split(",")) // Split the comma-separated paths
+                    .map(String::trim) // Trim spaces to avoid errors
+                    .collect(Collectors.toList());
+            AnalysisContext allReposContext = new AnalysisContext();
+            AtomicInteger repositoryIndex = new AtomicInteger();
+            RepositoryRunner.forEachRepository(inputFiles, (context, file) -> {
+                if (shard != null) {
+                    return getAssertionPastaResultsInRepo(context, file);
+                }
+                detectAssertionPastaAndGenerateReport(context, file);
+                return null;
+            }, run -> {
+                int index = repositoryIndex.getAndIncrement();
+                System.out.print(run.output);
+                if (run.error != null) {
+                    System.err.println("Error processing repository " + run.repositoryPath + ": " + run.error.getMessage());
+                    run.error.printStackTrace();
+                } else if (shard != null) {
+                    try {
+                        PartialResult.ofDetection(operation, index, run.repositoryPath, shard, run.context, run.result).write();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                allReposContext.mergeFrom(run.context);
+            });
             // print map Map<Integer, Integer> separableComponentFrequency = new HashMap<>();
-             for (Map.Entry<Integer, Integer> entry : separableComponentFrequency.entrySet()) {
+             for (Map.Entry<Integer, Integer> entry : allReposContext.separableComponentFrequency.entrySet()) {
                 System.out.println("Key: " + entry.getKey() + ", Value: " + entry.getValue());
              }
         }
         else if (operation.equals("allReposFix")) {
             fixAssertionPastaInMultipleRepositoriesAndGenerateReports(inputFile);
         }
+        else if (operation.equals("detectDiff") || operation.equals("fixDiff")) { // Only test files changed since a git ref
+            if(args.length < 3) {
+                throw new IllegalArgumentException("Please provide the base git ref to diff against as an argument.");
+            }
+            String baseRef = args[2];
+            boolean onlyChangedMethods = args.length > 3 && args[3].equals("methods");
+            if (operation.equals("detectDiff")) {
+                detectAssertionPastaInDiffAndGenerateReport(new AnalysisContext(), inputFile, baseRef, onlyChangedMethods);
+            } else {
+                fixAssertionPastaInDiff(new AnalysisContext(), inputFile, baseRef, onlyChangedMethods);
+            }
+        }
+        else if (operation.equals("daemon")) { // The input is the port to listen on, see U2WClient
+            U2WDaemon.serve(Integer.parseInt(inputFile));
+        }
+        else if (operation.equals("watch")) { // Re-analyze test files as they are saved, optionally refactoring them
+            TestFileWatcher.watch(inputFile, args.length > 2 && args[2].equals("fix"));
+        }
+        else if (operation.equals("merge")) { // Partial results of sharded runs (a directory or comma-separated files)
+            mergePartialResultsAndGenerateReports(inputFile);
+        }
         else if (operation.equals("detectin")) {
             identifyAssertionPastas(inputFile);
         }
         else if (operation.equals("fixInRepo")) {
-            ResultCreateRefreshedTestFilesInSandbox result = fixAssertionPastaInRepo(inputFile);
+            AnalysisContext context = new AnalysisContext();
+            ResultCreateRefreshedTestFilesInSandbox result = fixAssertionPastaInRepo(context, inputFile);
+            if (shard != null) {
+                PartialResult.ofFix(operation, 0, inputFile, shard, context, result).write();
+                return;
+            }
             String repoName = extractRepoNameFromPath(inputFile);
-            String outputFilePath = "/Users/monilnarang/Documents/Research Evaluations/analytics/Apr22/analysis.xlsx";
-//            exportAnalyticsToCSV(outputFilePath, result);
-            exportAnalyticsToXLSX(outputFilePath, result, repoName);
+            String outputFilePath = ANALYTICS_XLSX_PATH;
+//            exportAnalyticsToCSV(context, outputFilePath, result);
+            exportAnalyticsToXLSX(context, outputFilePath, result, repoName);
+            if (AnalysisContext.streaming()) {
+                FixPipeline.printPeakHeapUsage();
+            }
         } else if(operation.equals("fixInAllRepoWithXLSXReport")) {
-            String[] inputFiles = inputFile.split(","); // Split the comma-separated paths
-            for (String file : inputFiles) {
-                ResultCreateRefreshedTestFilesInSandbox result = fixAssertionPastaInRepo(file);
-                String repoName = extractRepoNameFromPath(file);
-                String outputFilePath = "/Users/monilnarang/Documents/Research Evaluations/analytics/Apr22/analysis.xlsx";
-                exportAnalyticsToXLSX(outputFilePath, result, repoName);
-                analyticsMap.clear();
-                separableComponentFrequency.clear();
-                TotalRedundantTests = 0;
-                TotalNewPuts = 0;
+            List<String> inputFiles = Arrays.asList(inputFile.split(",")); // Split the comma-separated paths
+            String outputFilePath = ANALYTICS_XLSX_PATH;
+            AtomicInteger repositoryIndex = new AtomicInteger();
+            // Repositories are fixed concurrently, the shared workbook is updated one repository at a time in input order
+            RepositoryRunner.forEachRepository(inputFiles, Untangle2Weave::fixAssertionPastaInRepo, run -> {
+                int index = repositoryIndex.getAndIncrement();
+                System.out.print(run.output);
+                if (run.error != null) {
+                    System.err.println("Error processing repository " + run.repositoryPath + ": " + run.error.getMessage());
+                    run.error.printStackTrace();
+                    return;
+                }
+                if (shard != null) {
+                    try {
+                        PartialResult.ofFix(operation, index, run.repositoryPath, shard, run.context, run.result).write();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return;
+                }
+                String repoName = extractRepoNameFromPath(run.repositoryPath);
+                exportAnalyticsToXLSX(run.context, outputFilePath, run.result, repoName);
+            });
+            if (AnalysisContext.streaming()) {
+                FixPipeline.printPeakHeapUsage();
             }
         }
         else if(operation.equals("fixinfile")) {
             List<TestFileResult> clutters = new ArrayList<>();
             clutters.add(identifyAssertionPastas(inputFile));
-            ResultCreateRefreshedTestFilesInSandbox result = createRefreshedTestFilesInSandbox(clutters);
+            ResultCreateRefreshedTestFilesInSandbox result = createRefreshedTestFilesInSandbox(new AnalysisContext(), clutters);
             System.out.println("Total new separated tests created: " + result.totalNewSeparatedTestsCreated);
             System.out.println("Total potential PUTs: " + result.totalPotentialPuts);
             System.out.println("Total new PUTs created: " + result.totalNewPUTsCreated);
@@ -3785,27 +4266,29 @@ public class Untangle2Weave {
             List<String> listTestMethods = extractTestMethodListFromCU(cu);
             HashMap<String, NodeList<Node>> statementNodesListMap = extractASTNodesForTestMethods(cu, listTestMethods);
             List<List<UnitTest>> similarTestGroups = groupSimilarTests(listTestMethods, statementNodesListMap);
-            List<MethodDeclaration> newPUTs = retrofitSimilarTestsTogether(similarTestGroups, cu);
+            List<MethodDeclaration> newPUTs = retrofitSimilarTestsTogether(similarTestGroups, cu, Paths.get(purifiedTestsFile));
             String putsFile = createParameterizedTestFile(purifiedTestsFile, newPUTs, new ArrayList<>());
             createGPTEnhancedTestFile(putsFile, newPUTs);
         } else if(operation.equals("detectSimilarIn")) { // Similar tests to PUTify
-            detectSimilarTestsInFile(inputFile);
+            detectSimilarTestsInFile(new AnalysisContext(), inputFile);
         } else if(operation.equals("detectSimilar")) { // Similar tests to PUTify
-            detectSimilarTestsInRepoAndGenerateReport(inputFile);
-            System.out.println("Total Redundant Tests: " + TotalRedundantTests);
-            System.out.println("Total New PUTs: " + TotalNewPuts);
+            AnalysisContext context = new AnalysisContext();
+            detectSimilarTestsInRepoAndGenerateReport(context, inputFile);
+            System.out.println("Total Redundant Tests: " + context.totalRedundantTests);
+            System.out.println("Total New PUTs: " + context.totalNewPuts);
         } else if(operation.equals("retrofitIn")) { // Similar tests to PUTs
             CompilationUnit cu = configureJavaParserAndGetCompilationUnit(inputFile);
-            List<List<UnitTest>> similarTest = detectSimilarTestsInFile(inputFile);
-            List<MethodDeclaration> newPUTs = retrofitSimilarTestsTogether(similarTest, cu);
-            System.out.println("Total New PUTs: " + TotalNewPuts);
+            AnalysisContext context = new AnalysisContext();
+            List<List<UnitTest>> similarTest = detectSimilarTestsInFile(context, inputFile);
+            List<MethodDeclaration> newPUTs = retrofitSimilarTestsTogether(similarTest, cu, Paths.get(inputFile));
+            System.out.println("Total New PUTs: " + context.totalNewPuts);
             String putsFile = createParameterizedTestFile(inputFile, newPUTs, extractTestMethodsToExclude(similarTest));
             System.out.println("Parameterized test file created: " + putsFile);
         } else if(operation.equals("retrofit")) {
 
         } else if(operation.equals("fix")) {
             TestFileResult result = identifyAssertionPastas(inputFile);
-            createRefreshedTestFilesInSandbox(Collections.singletonList(result));
+            createRefreshedTestFilesInSandbox(new AnalysisContext(), Collections.singletonList(result));
 //            String purifiedTestsFile = createPurifiedTestFile(inputFile);
 //            System.out.println( "Purified test file created: " + purifiedTestsFile);
 //
@@ -0,0 +1,65 @@
+package refactor2refresh;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GitDiffScopeTest {
+
+    @TempDir
+    Path repository;
+
+    private void git(String... arguments) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(Arrays.asList("git", "-c", "user.name=u2w", "-c", "user.email=u2w@localhost"));
+        command.addAll(Arrays.asList(arguments));
+        Process process = new ProcessBuilder(command).directory(repository.toFile()).inheritIO().start();
+        assertEquals(0, process.waitFor(), String.join(" ", command));
+    }
+
+    private Path write(String name, String content) throws IOException {
+        Path file = repository.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+        return file;
+    }
+
+    @Test
+    void testQuotedAndUntrackedFiles() throws Exception {
+        git("init", "-q");
+        Path quoted = write("src/Odd \"Name\" Test.java", "class OddNameTest {\n"
+                + "    @Test\n"
+                + "    void testA() {\n"
+                + "        assertEquals(1, 1);\n"
+                + "    }\n"
+                + "    @Test\n"
+                + "    void testB() {\n"
+                + "        assertEquals(2, 2);\n"
+                + "    }\n"
+                + "}\n");
+        git("add", ".");
+        git("commit", "-q", "-m", "base");
+
+        write("src/Odd \"Name\" Test.java", Files.readString(quoted).replace("assertEquals(2, 2)", "assertEquals(3, 3)"));
+        Path untracked = write("src/NewTest.java", "class NewTest {\n"
+                + "    @Test\n"
+                + "    void testC() {\n"
+                + "        assertEquals(1, 1);\n"
+                + "    }\n"
+                + "}\n");
+        write(".gitignore", "Ignored*.java\n");
+        write("src/IgnoredTest.java", "class IgnoredTest {\n}\n");
+
+        GitDiffScope scope = GitDiffScope.compute(repository.toString(), "HEAD");
+        assertEquals(Arrays.asList(quoted, untracked), scope.changedFiles());
+        assertEquals(Set.of("testB"), scope.changedTestMethods(quoted));
+        assertEquals(Set.of("testC"), scope.changedTestMethods(untracked));
+    }
+}
@@ -0,0 +1,40 @@
+package refactor2refresh;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LexicalPrefilterTest {
+
+    private static LexicalPrefilter.Counts scan(String source) {
+        return LexicalPrefilter.scan(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testQualifiedTestAnnotations() {
+        LexicalPrefilter.Counts counts = scan("class ATest {\n"
+                + "    @org.junit.Test\n"
+                + "    public void testA() { assertEquals(1, a); assertEquals(2, b); }\n"
+                + "    @org.junit.jupiter.api.Test\n"
+                + "    void testB() { assertTrue(c); }\n"
+                + "    @org.junit . Test void testC() { }\n"
+                + "}\n");
+        assertEquals(3, counts.testAnnotations);
+        assertEquals(3, counts.assertionCalls);
+        assertFalse(counts.canSkip());
+    }
+
+    @Test
+    void testOtherAnnotations() {
+        LexicalPrefilter.Counts counts = scan("class ATest {\n"
+                + "    @org.junit.TestFactory @Tested @TestInstance(PER_CLASS) @test.Before\n"
+                + "    void testA() { assertEquals(1, a); assertEquals(2, b); }\n"
+                + "    // @Test\n"
+                + "    void testB() { String s = \"@Test\"; }\n"
+                + "}\n");
+        assertEquals(0, counts.testAnnotations);
+        assertTrue(counts.canSkip());
+    }
+}
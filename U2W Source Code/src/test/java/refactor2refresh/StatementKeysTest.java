@@ -0,0 +1,44 @@
+package refactor2refresh;
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatementKeysTest {
+
+    private static int separableComponents(String method) {
+        MethodDeclaration testMethod = StaticJavaParser.parseMethodDeclaration(method);
+        List<MethodCallExpr> assertions = Untangle2Weave.extractAssertions(testMethod);
+        TestSlicer slicer = TestSlicer.of(testMethod, assertions, Collections.emptyMap());
+        assertNotNull(slicer);
+        List<int[]> statementKeys = Untangle2Weave.statementKeys(slicer.keptStatements(), testMethod, assertions);
+        return Untangle2Weave.countSeparableComponents(statementKeys, slicer.statementCount());
+    }
+
+    @Test
+    void testJavaAssertDoesNotJoinSlices() {
+        assertEquals(2, separableComponents("void testTwoLogics() {\n"
+                + "    Account first = new Account(10.0);\n"
+                + "    Account second = new Account(20.0);\n"
+                + "    assert first != second;\n"
+                + "    assertEquals(10.0, first.getBalance());\n"
+                + "    assertEquals(20.0, second.getBalance());\n"
+                + "}"));
+    }
+
+    @Test
+    void testSharedStatementJoinsSlices() {
+        assertEquals(1, separableComponents("void testOneLogic() {\n"
+                + "    Account first = new Account(10.0);\n"
+                + "    Account second = new Account(20.0);\n"
+                + "    first.transfer(second);\n"
+                + "    assertEquals(0.0, first.getBalance());\n"
+                + "    assertEquals(30.0, second.getBalance());\n"
+                + "}"));
+    }
+}
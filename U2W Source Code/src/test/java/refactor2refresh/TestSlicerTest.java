@@ -0,0 +1,128 @@
+package refactor2refresh;
+import com.github.javaparser.StaticJavaParser;
+import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
+import com.github.javaparser.ast.body.MethodDeclaration;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestSlicerTest {
+
+    // TestSlicer must keep the statements performSlicing keeps on a purified clone of the test
+    private static List<int[]> assertSameSlices(MethodDeclaration testMethod, Map<String, Set<String>> beforeMethodDependencies) {
+        List<MethodCallExpr> assertions = Untangle2Weave.extractAssertions(testMethod);
+        TestSlicer slicer = TestSlicer.of(testMethod, assertions, beforeMethodDependencies);
+        assertNotNull(slicer);
+        List<int[]> expected = Untangle2Weave.keptStatementsOfClones(testMethod, assertions, beforeMethodDependencies);
+        List<int[]> actual = slicer.keptStatements();
+        assertEquals(expected.size(), actual.size());
+        for (int a = 0; a < expected.size(); a++) {
+            assertArrayEquals(expected.get(a), actual.get(a), "assertion " + (a + 1));
+        }
+        return actual;
+    }
+
+    private static List<int[]> assertSameSlices(String method) {
+        return assertSameSlices(StaticJavaParser.parseMethodDeclaration(method), Collections.emptyMap());
+    }
+
+    @Test
+    void testDeclarationWithDroppedDeclarator() {
+        List<int[]> kept = assertSameSlices("void testDeclarators() {\n"
+                + "    int x = 1;\n"
+                + "    int y = 2;\n"
+                + "    int a = x, b = y;\n"
+                + "    assertEquals(1, a);\n"
+                + "    assertEquals(2, y);\n"
+                + "}");
+        // b is not used, so the declaration is dropped, but what a is initialized with is still required
+        assertArrayEquals(new int[]{0, 3}, kept.get(0));
+        assertArrayEquals(new int[]{1, 4}, kept.get(1));
+    }
+
+    @Test
+    void testAssignmentsThroughCalls() {
+        assertSameSlices("void testAssignments() {\n"
+                + "    List<String> list = new ArrayList<>();\n"
+                + "    Account account = new Account(10.0);\n"
+                + "    String name;\n"
+                + "    name = account.getName();\n"
+                + "    int size;\n"
+                + "    size = list.size();\n"
+                + "    list.add(name);\n"
+                + "    assertEquals(\"a\", name);\n"
+                + "    assertEquals(1, size);\n"
+                + "}");
+    }
+
+    @Test
+    void testBeforeDependencies() {
+        CompilationUnit cu = StaticJavaParser.parse("class BankTest {\n"
+                + "    Account account;\n"
+                + "    Bank bank;\n"
+                + "    Teller teller;\n"
+                + "    @Before\n"
+                + "    public void setUp() {\n"
+                + "        account = new Account(10.0);\n"
+                + "        bank = new Bank(account);\n"
+                + "        teller = new Teller(clerk);\n"
+                + "    }\n"
+                + "    @Test\n"
+                + "    public void testAudit() {\n"
+                + "        Account other = new Account(1.0);\n"
+                + "        teller.open();\n"
+                + "        bank.audit();\n"
+                + "        other.deposit(2.0);\n"
+                + "        record(account.with(clerk));\n"
+                + "        assertEquals(10.0, account.getBalance());\n"
+                + "        assertEquals(3.0, other.getBalance());\n"
+                + "    }\n"
+                + "}");
+        ClassOrInterfaceDeclaration testClass = cu.getClassByName("BankTest").get();
+        Map<String, Set<String>> beforeMethodDependencies = Untangle2Weave.extractBeforeMethodDependencies(testClass);
+        List<int[]> kept = assertSameSlices(testClass.getMethodsByName("testAudit").get(0), beforeMethodDependencies);
+        // bank depends on account in setUp, and teller on clerk, which the argument of record uses
+        assertArrayEquals(new int[]{1, 2, 4, 5}, kept.get(0));
+        assertArrayEquals(new int[]{0, 3, 6}, kept.get(1));
+    }
+
+    @Test
+    void testEqualAssertions() {
+        List<int[]> kept = assertSameSlices("void testDuplicates() {\n"
+                + "    Account account = new Account(10.0);\n"
+                + "    assertEquals(10.0, account.getBalance());\n"
+                + "    account.deposit(5.0);\n"
+                + "    assertEquals(10.0, account.getBalance());\n"
+                + "    Account other = new Account(1.0);\n"
+                + "    assertEquals(1.0, other.getBalance());\n"
+                + "}");
+        // Purifying keeps the first of two equal assertions
+        assertArrayEquals(kept.get(0), kept.get(1));
+    }
+
+    @Test
+    void testNestedAndChainedAssertionsAreNotSliced() {
+        MethodDeclaration nested = StaticJavaParser.parseMethodDeclaration("void testNested() {\n"
+                + "    Account account = new Account(10.0);\n"
+                + "    if (account.isOpen()) {\n"
+                + "        assertEquals(10.0, account.getBalance());\n"
+                + "    }\n"
+                + "    assertTrue(account.isOpen());\n"
+                + "}");
+        assertNull(TestSlicer.of(nested, Untangle2Weave.extractAssertions(nested), Collections.emptyMap()));
+
+        MethodDeclaration chained = StaticJavaParser.parseMethodDeclaration("void testChained() {\n"
+                + "    Account account = new Account(10.0);\n"
+                + "    assertThat(account.getBalance()).isEqualTo(10.0);\n"
+                + "    assertTrue(account.isOpen());\n"
+                + "}");
+        assertNull(TestSlicer.of(chained, Untangle2Weave.extractAssertions(chained), Collections.emptyMap()));
+    }
+}